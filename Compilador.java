@@ -1,12 +1,45 @@
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 
 class Token {
     public static final String ILLEGAL = "ILLEGAL";
@@ -285,11 +318,44 @@ class Lexer {
 }
 
 class Node {
+    public static final int UNKNOWN_NODE = 0;
+    public static final int PROGRAM_NODE = 1;
+    public static final int EXPRESSION_STATEMENT_NODE = 2;
+    public static final int INTEGER_LITERAL_NODE = 3;
+    public static final int BOOLEAN_NODE = 4;
+    public static final int PREFIX_EXPRESSION_NODE = 5;
+    public static final int INFIX_EXPRESSION_NODE = 6;
+    public static final int BLOCK_STATEMENT_NODE = 7;
+    public static final int IF_EXPRESSION_NODE = 8;
+    public static final int RETURN_STATEMENT_NODE = 9;
+    public static final int LET_STATEMENT_NODE = 10;
+    public static final int IDENTIFIER_NODE = 11;
+    public static final int FUNCTION_LITERAL_NODE = 12;
+    public static final int CALL_EXPRESSION_NODE = 13;
+    public static final int STRING_LITERAL_NODE = 14;
+    public static final int ARRAY_LITERAL_NODE = 15;
+    public static final int INDEX_EXPRESSION_NODE = 16;
+    public static final int HASH_LITERAL_NODE = 17;
+
     protected Token token;
+    // 1 when the subtree holds no call expression, -1 when it does, 0 unknown
+    private byte callFree;
     
     public Node() {
     }
     
+    public int getKind() {
+        return UNKNOWN_NODE;
+    }
+    
+    public byte getCallFree() {
+        return callFree;
+    }
+    
+    public void setCallFree(byte callFree) {
+        this.callFree = callFree;
+    }
+    
     public void setToken(Token token) {
         this.token = token;
     }
@@ -298,9 +364,20 @@ class Node {
         return token.getLiteral();
     }
     
+    // Writes the source form of the subtree; toString collects the same
+    // text in a string.
+    public void writeTo(Appendable out) throws IOException {
+    }
+    
     @Override
     public String toString() {
-        return "";
+        StringBuilder ret = new StringBuilder();
+        try {
+            writeTo(ret);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ret.toString();
     }
 }
 
@@ -337,8 +414,13 @@ class Identifier extends Expression {
     }
     
     @Override
-    public String toString() {
-        return value;
+    public int getKind() {
+        return IDENTIFIER_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(value);
     }
 }
 
@@ -369,19 +451,22 @@ class LetStatement extends Statement {
     }
     
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append(tokenLiteral());
-        ret.append(" ");
-        ret.append(name);
-        ret.append(" = ");
+    public int getKind() {
+        return LET_STATEMENT_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(tokenLiteral());
+        out.append(" ");
+        name.writeTo(out);
+        out.append(" = ");
         //
         if (value != null) {
-            ret.append(value);
+            value.writeTo(out);
         }
         //
-        ret.append(";");
-        return ret.toString();
+        out.append(";");
     }
 }
 
@@ -402,15 +487,18 @@ class ReturnStatement extends Statement {
     }
     
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append(tokenLiteral());
-        ret.append(" ");
+    public int getKind() {
+        return RETURN_STATEMENT_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(tokenLiteral());
+        out.append(" ");
         if (returnValue != null) {
-            ret.append(returnValue);
+            returnValue.writeTo(out);
         }
-        ret.append(";");
-        return ret.toString();
+        out.append(";");
     }
     
 }
@@ -432,11 +520,15 @@ class ExpressionStatement extends Statement {
     }
     
     @Override
-    public String toString() {
+    public int getKind() {
+        return EXPRESSION_STATEMENT_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
         if (expression != null) {
-            return expression.toString();
+            expression.writeTo(out);
         }
-        return "";
     }
 }
 
@@ -457,40 +549,54 @@ class BlockStatement extends Statement {
     }
     
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append(String.format("%s{%s", Compilador.LINESEP, Compilador.LINESEP));
+    public int getKind() {
+        return BLOCK_STATEMENT_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(Compilador.LINESEP);
+        out.append("{");
+        out.append(Compilador.LINESEP);
         //
         for(Statement s: statements) {
-            ret.append(String.format("%s;%s", s.toString(), Compilador.LINESEP));
+            s.writeTo(out);
+            out.append(";");
+            out.append(Compilador.LINESEP);
         }
         //
-        ret.append(String.format("}%s", Compilador.LINESEP));
-        return ret.toString();
+        out.append("}");
+        out.append(Compilador.LINESEP);
     }
 }
 
 class IntegerLiteral extends Expression {
-    private BigDecimal value;
+    private BigInteger value;
 
-    public IntegerLiteral(BigDecimal value) {
+    public IntegerLiteral(BigInteger value) {
         this.token = new Token();
         this.value = value;
     }
     
-    public BigDecimal getValue() {
+    public BigInteger getValue() {
         return value;
     }
     
     @Override
-    public String toString() {
-        return token.getLiteral();
+    public int getKind() {
+        return INTEGER_LITERAL_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(token.getLiteral());
     }
     
 }
 
 class MonkeyStringLiteral extends Expression {
     private String value;
+    private MonkeyObjectString object;
 
     public MonkeyStringLiteral() {
         this.token = new Token();
@@ -505,10 +611,25 @@ class MonkeyStringLiteral extends Expression {
     public String getValue() {
         return value;
     }
+    
+    // The interned string object, looked up on first evaluation.
+    public MonkeyObjectString getObject() {
+        MonkeyObjectString o = object;
+        if (o == null) {
+            o = MonkeyStringTable.intern(value);
+            object = o;
+        }
+        return o;
+    }
 
     @Override
-    public String toString() {
-        return token.getLiteral();
+    public int getKind() {
+        return STRING_LITERAL_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(token.getLiteral());
     }
 }
 
@@ -539,26 +660,29 @@ class MonkeyFunctionLiteral extends Expression {
     }
     
     @Override
-    public String toString() {
-        List<String> params = new ArrayList<String>();
-        for (Identifier p: parameters) {
-            params.add(p.toString());
+    public int getKind() {
+        return FUNCTION_LITERAL_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(tokenLiteral());
+        out.append("(");
+        for (int i=0; i<parameters.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            parameters.get(i).writeTo(out);
         }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append(tokenLiteral());
-        ret.append("(");
-        ret.append(CompiUtil.stringJoin(", ", params));
-        ret.append(")");
-        ret.append(body.toString());
-        //
-        return ret.toString();
+        out.append(")");
+        body.writeTo(out);
     }
 }
 
 class MonkeyCallExpression extends Expression {
     private Expression function;
     private List<Expression> arguments;
+    private boolean tail;
 
     public MonkeyCallExpression() {
         this.token = new Token();
@@ -582,20 +706,30 @@ class MonkeyCallExpression extends Expression {
         this.arguments = arguments;
     }
     
+    public boolean isTail() {
+        return tail;
+    }
+    
+    public void setTail(boolean tail) {
+        this.tail = tail;
+    }
+    
     @Override
-    public String toString() {
-        List<String> args = new ArrayList<String>();
-        for (Expression a: arguments) {
-            args.add(a.toString());
+    public int getKind() {
+        return CALL_EXPRESSION_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        function.writeTo(out);
+        out.append("(");
+        for (int i=0; i<arguments.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            arguments.get(i).writeTo(out);
         }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append(function.toString());
-        ret.append("(");
-        ret.append(CompiUtil.stringJoin(", ", args));
-        ret.append(")");
-        //
-        return ret.toString();
+        out.append(")");
     }
 }
 
@@ -612,8 +746,13 @@ class MonkeyBoolean extends Expression {
     }
     
     @Override
-    public String toString() {
-        return token.getLiteral();
+    public int getKind() {
+        return BOOLEAN_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append(token.getLiteral());
     }
 }
 
@@ -644,20 +783,33 @@ class MonkeyPrefixExpression extends Expression {
     }
     
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append("(");
-        ret.append(operator);
-        ret.append(right.toString());
-        ret.append(")");
-        //
-        return ret.toString();
+    public int getKind() {
+        return PREFIX_EXPRESSION_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append("(");
+        out.append(operator);
+        right.writeTo(out);
+        out.append(")");
     }
 }
 
 class MonkeyInfixExpression extends Expression {
+    public static final int UNKNOWN_OP = 0;
+    public static final int ADD_OP = 1;
+    public static final int SUB_OP = 2;
+    public static final int MUL_OP = 3;
+    public static final int DIV_OP = 4;
+    public static final int LT_OP = 5;
+    public static final int GT_OP = 6;
+    public static final int EQ_OP = 7;
+    public static final int NOT_EQ_OP = 8;
+
     private Expression left;
     private String operator;
+    private int opcode;
     private Expression right;
 
     public MonkeyInfixExpression() {
@@ -667,6 +819,31 @@ class MonkeyInfixExpression extends Expression {
         this.right = new Expression();
     }
     
+    public static int opcodeOf(String operator) {
+        if (operator.equals(Token.PLUS)) {
+            return ADD_OP;
+        } else if (operator.equals(Token.MINUS)) {
+            return SUB_OP;
+        } else if (operator.equals(Token.ASTERISK)) {
+            return MUL_OP;
+        } else if (operator.equals(Token.SLASH)) {
+            return DIV_OP;
+        } else if (operator.equals(Token.LT)) {
+            return LT_OP;
+        } else if (operator.equals(Token.GT)) {
+            return GT_OP;
+        } else if (operator.equals(Token.EQ)) {
+            return EQ_OP;
+        } else if (operator.equals(Token.NOT_EQ)) {
+            return NOT_EQ_OP;
+        }
+        return UNKNOWN_OP;
+    }
+    
+    public int getOpcode() {
+        return opcode;
+    }
+    
     public Expression getLeft() {
         return left;
     }
@@ -681,6 +858,7 @@ class MonkeyInfixExpression extends Expression {
     
     public void setOperator(String operator) {
         this.operator = operator;
+        this.opcode = opcodeOf(operator);
     }
     
     public void setLeft(Expression left) {
@@ -692,17 +870,19 @@ class MonkeyInfixExpression extends Expression {
     }
     
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append("(");
-        ret.append(left.toString());
-        ret.append(" ");
-        ret.append(operator);
-        ret.append(" ");
-        ret.append(right.toString());
-        ret.append(")");
-        //
-        return ret.toString();
+    public int getKind() {
+        return INFIX_EXPRESSION_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append("(");
+        left.writeTo(out);
+        out.append(" ");
+        out.append(operator);
+        out.append(" ");
+        right.writeTo(out);
+        out.append(")");
     }
 }
 
@@ -743,19 +923,21 @@ class MonkeyIfExpression extends Expression {
     }
     
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append("if");
-        ret.append(condition.toString());
-        ret.append(" ");
-        ret.append(consequence.toString());
+    public int getKind() {
+        return IF_EXPRESSION_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append("if");
+        condition.writeTo(out);
+        out.append(" ");
+        consequence.writeTo(out);
         //
         if (!alternative.isEmpty()) {
-            ret.append(" else ");
-            ret.append(alternative.toString());
+            out.append(" else ");
+            alternative.writeTo(out);
         }
-        //
-        return ret.toString();
     }
 }
 
@@ -776,24 +958,27 @@ class MonkeyArrayLiteral extends Expression {
     }
 
     @Override
-    public String toString() {
-        List<String> elements = new ArrayList<String>();
-        for (Expression e: this.elements) {
-            elements.add(e.toString());
+    public int getKind() {
+        return ARRAY_LITERAL_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append("[");
+        for (int i=0; i<elements.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            elements.get(i).writeTo(out);
         }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append("[");
-        ret.append(CompiUtil.stringJoin(", ", elements));
-        ret.append("]");
-        //
-        return ret.toString();
+        out.append("]");
     }
 }
 
 class MonkeyIndexExpression extends Expression {
     private Expression left;
     private Expression index;
+    private final MonkeyIndexSite site = new MonkeyIndexSite();
 
     public MonkeyIndexExpression() {
         this.token = new Token();
@@ -817,16 +1002,22 @@ class MonkeyIndexExpression extends Expression {
         this.index = index;
     }
     
+    public MonkeyIndexSite getSite() {
+        return site;
+    }
+    
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
-        ret.append("(");
-        ret.append(left.toString());
-        ret.append("[");
-        ret.append(index.toString());
-        ret.append("])");
-        //
-        return ret.toString();
+    public int getKind() {
+        return INDEX_EXPRESSION_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append("(");
+        left.writeTo(out);
+        out.append("[");
+        index.writeTo(out);
+        out.append("])");
     }
 }
 
@@ -835,7 +1026,7 @@ class MonkeyHashLiteral extends Expression {
 
     public MonkeyHashLiteral() {
         this.token = new Token();
-        this.pairs = new HashMap<Expression, Expression>();
+        this.pairs = new LinkedHashMap<Expression, Expression>();
     }   
     
     public void setPairs(Map<Expression, Expression> pairs) {
@@ -847,19 +1038,24 @@ class MonkeyHashLiteral extends Expression {
     }
     
     @Override
-    public String toString() {
-        List<String> pairs = new ArrayList<String>();
-        for (Expression k: this.pairs.keySet()) {
-            Expression v = this.pairs.get(k);
-            pairs.add(String.format("%s:%s", k.toString(), v.toString()));
+    public int getKind() {
+        return HASH_LITERAL_NODE;
+    }
+    
+    @Override
+    public void writeTo(Appendable out) throws IOException {
+        out.append("{");
+        boolean first = true;
+        for (Map.Entry<Expression, Expression> e: pairs.entrySet()) {
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            e.getKey().writeTo(out);
+            out.append(":");
+            e.getValue().writeTo(out);
         }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append("{");
-        ret.append(CompiUtil.stringJoin(", ", pairs));
-        ret.append("}");
-        //
-        return ret.toString();
+        out.append("}");
     }
 }
 
@@ -906,9 +1102,9 @@ class MonkeyParser {
 
     class ParseIntegerLiteral implements MonkeyParserPrefixCallable {
         public Expression call() {
-            BigDecimal test;
+            BigInteger test;
             try {
-                test = new BigDecimal(curToken.getLiteral());
+                test = new BigInteger(curToken.getLiteral());
             } catch (Exception e) {
                 String msg = String.format("could not parse %s as integer", curToken.getLiteral());
                 errors.add(msg);
@@ -1006,6 +1202,7 @@ class MonkeyParser {
             }
             //
             lit.setBody(parseBlockStatement());
+            markTailCalls(lit.getBody(), true);
             //
             return lit;
         }
@@ -1230,6 +1427,34 @@ class MonkeyParser {
         return block;
     }
     
+    // Marks the calls whose value becomes the function result unchanged, so
+    // the evaluator can run them in the caller's frame.
+    void markTailCalls(BlockStatement block, boolean tail) {
+        List<Statement> statements = block.getStatements();
+        for (int i=0; i<statements.size(); i++) {
+            Statement s = statements.get(i);
+            boolean last = tail && i == statements.size() - 1;
+            if (s instanceof ReturnStatement) {
+                markTailCall(((ReturnStatement) s).getReturnValue());
+            } else if (s instanceof ExpressionStatement) {
+                Expression e = ((ExpressionStatement) s).getExpression();
+                if (e instanceof MonkeyIfExpression) {
+                    MonkeyIfExpression ifExp = (MonkeyIfExpression) e;
+                    markTailCalls(ifExp.getConsequence(), last);
+                    markTailCalls(ifExp.getAlternative(), last);
+                } else if (last) {
+                    markTailCall(e);
+                }
+            }
+        }
+    }
+    
+    void markTailCall(Expression e) {
+        if (e instanceof MonkeyCallExpression) {
+            ((MonkeyCallExpression) e).setTail(true);
+        }
+    }
+    
     Expression parseExpression(int precedence) {
         MonkeyParserPrefixCallable prefix = prefixParseFns.get(curToken.getType());
         if (prefix == null) {
@@ -1392,6 +1617,11 @@ class MonkeyProgram extends Node {
         return statements;
     }
     
+    @Override
+    public int getKind() {
+        return PROGRAM_NODE;
+    }
+    
     @Override
     public String tokenLiteral() {
         if (statements.size() > 0) {
@@ -1402,39 +1632,64 @@ class MonkeyProgram extends Node {
     }
 
     @Override
-    public String toString() {
-        StringBuilder ret = new StringBuilder();
+    public void writeTo(Appendable out) throws IOException {
         for (Statement s: statements) {
-            ret.append(s.toString());
+            s.writeTo(out);
         }
-        return ret.toString();
     }    
 }
 
+// Values usable as hash keys. They implement hashCode and equals by value,
+// so hash tables key on the objects themselves.
 interface MonkeyHashable {
-    MonkeyHashKey hashKey();
 }
 
-class MonkeyObject {
-    public static final String INTEGER_OBJ = "INTEGER";
-    public static final String BOOLEAN_OBJ = "BOOLEAN";
-    public static final String NULL_OBJ = "NULL";
-    public static final String RETURN_VALUE_OBJ = "RETURN_VALUE";
-    public static final String ERROR_OBJ = "ERROR";
-    public static final String FUNCTION_OBJ = "FUNCTION";
-    public static final String STRING_OBJ = "STRING";
-    public static final String BUILTIN_OBJ = "BUILTIN";
-    public static final String ARRAY_OBJ = "ARRAY";
-    public static final String HASH_OBJ = "HASH";
-    
-    protected String type;
-
-    public MonkeyObject() {
-        this.type = "";
+// Type identity of runtime objects. Each MonkeyObject class answers a
+// constant, so type checks are reference comparisons; toString gives the
+// name used in error messages.
+enum MonkeyObjectType {
+    NONE(""),
+    INTEGER("INTEGER"),
+    BOOLEAN("BOOLEAN"),
+    NULL("NULL"),
+    RETURN_VALUE("RETURN_VALUE"),
+    ERROR("ERROR"),
+    FUNCTION("FUNCTION"),
+    STRING("STRING"),
+    BUILTIN("BUILTIN"),
+    ARRAY("ARRAY"),
+    HASH("HASH"),
+    BUFFER("BUFFER"),
+    SEQUENCE("SEQUENCE");
+    
+    private final String label;
+    
+    MonkeyObjectType(String label) {
+        this.label = label;
     }
     
-    public String getType() {
-        return type;
+    @Override
+    public String toString() {
+        return label;
+    }
+}
+
+class MonkeyObject {
+    public static final MonkeyObjectType INTEGER_OBJ = MonkeyObjectType.INTEGER;
+    public static final MonkeyObjectType BOOLEAN_OBJ = MonkeyObjectType.BOOLEAN;
+    public static final MonkeyObjectType NULL_OBJ = MonkeyObjectType.NULL;
+    public static final MonkeyObjectType RETURN_VALUE_OBJ = MonkeyObjectType.RETURN_VALUE;
+    public static final MonkeyObjectType ERROR_OBJ = MonkeyObjectType.ERROR;
+    public static final MonkeyObjectType FUNCTION_OBJ = MonkeyObjectType.FUNCTION;
+    public static final MonkeyObjectType STRING_OBJ = MonkeyObjectType.STRING;
+    public static final MonkeyObjectType BUILTIN_OBJ = MonkeyObjectType.BUILTIN;
+    public static final MonkeyObjectType ARRAY_OBJ = MonkeyObjectType.ARRAY;
+    public static final MonkeyObjectType HASH_OBJ = MonkeyObjectType.HASH;
+    public static final MonkeyObjectType BUFFER_OBJ = MonkeyObjectType.BUFFER;
+    public static final MonkeyObjectType SEQUENCE_OBJ = MonkeyObjectType.SEQUENCE;
+    
+    public MonkeyObjectType getType() {
+        return MonkeyObjectType.NONE;
     }
     
     public String inspect() {
@@ -1444,129 +1699,445 @@ class MonkeyObject {
     public String inspectValue() {
         return inspect();
     }
+    
+    // Streaming forms of inspect and inspectValue. Containers write their
+    // elements one at a time, so rendering holds no more than one path
+    // from the outer value down to the element being written.
+    public void inspectTo(Appendable out) throws IOException {
+        out.append(inspect());
+    }
+    
+    public void inspectValueTo(Appendable out) throws IOException {
+        inspectTo(out);
+    }
+    
+    // inspect for classes that render through inspectTo.
+    protected String inspectToString() {
+        StringBuilder ret = new StringBuilder();
+        try {
+            inspectTo(ret);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ret.toString();
+    }
 }
 
+// Integers are held in a long; only values outside the long range fall
+// back to a BigInteger, so big is null on the fast path. Instances are
+// immutable and always obtained through valueOf, which hands out shared
+// objects for the range monkey.intcache.low..monkey.intcache.high.
 class MonkeyObjectInteger extends MonkeyObject implements MonkeyHashable {
-    private BigDecimal value;
-
-    public MonkeyObjectInteger() {
-        type = INTEGER_OBJ;
+    static final int CACHE_LOW = Integer.getInteger("monkey.intcache.low", -1024);
+    static final int CACHE_HIGH = Math.max(CACHE_LOW - 1,
+            Integer.getInteger("monkey.intcache.high", 65535));
+    private static final MonkeyObjectInteger[] CACHE = 
+            new MonkeyObjectInteger[CACHE_HIGH - CACHE_LOW + 1];
+    
+    static {
+        for (int i = 0; i < CACHE.length; i++) {
+            CACHE[i] = new MonkeyObjectInteger((long) CACHE_LOW + i);
+        }
     }
+    
+    private final long value;
+    private final BigInteger big;
 
-    public MonkeyObjectInteger(BigDecimal value) {
-        this();
+    private MonkeyObjectInteger(long value) {
         this.value = value;
+        this.big = null;
     }
 
-    public MonkeyObjectInteger(int value) {
-        this();
-        this.value = BigDecimal.valueOf(value);
+    private MonkeyObjectInteger(BigInteger value) {
+        this.value = 0;
+        this.big = value;
+    }
+    
+    public static MonkeyObjectInteger valueOf(long value) {
+        if (value >= CACHE_LOW && value <= CACHE_HIGH) {
+            return CACHE[(int) (value - CACHE_LOW)];
+        }
+        return new MonkeyObjectInteger(value);
+    }
+    
+    public static MonkeyObjectInteger valueOf(BigInteger value) {
+        if (value.bitLength() < 64) {
+            return valueOf(value.longValue());
+        }
+        return new MonkeyObjectInteger(value);
+    }
+
+    @Override
+    public MonkeyObjectType getType() {
+        return INTEGER_OBJ;
     }
 
-    public BigDecimal getValue() {
+    public boolean isBig() {
+        return big != null;
+    }
+
+    public long getLongValue() {
         return value;
     }
+
+    public BigInteger getValue() {
+        if (big != null) {
+            return big;
+        }
+        return BigInteger.valueOf(value);
+    }
     
     public int getIntegerValue() {
-        return value.intValue();
+        if (big != null) {
+            return big.intValue();
+        }
+        return (int) value;
     }
     
-    public void setValue(BigDecimal value) {
-        this.value = value;
+    @Override
+    public int hashCode() {
+        if (big != null) {
+            return big.hashCode();
+        }
+        return Long.hashCode(value);
     }
     
-    public MonkeyHashKey hashKey() {
-        return new MonkeyHashKey(type, value.hashCode());
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        } else if (!(obj instanceof MonkeyObjectInteger)) {
+            return false;
+        }
+        MonkeyObjectInteger other = (MonkeyObjectInteger) obj;
+        if (big != null || other.big != null) {
+            return big != null && big.equals(other.big);
+        }
+        return value == other.value;
     }
 
     @Override
     public String inspect() {
+        if (big != null) {
+            return big.toString();
+        }
         return String.valueOf(value);
     }
 }
 
+// A string is flat, a slice of another string's characters or a rope,
+// the concatenation of two strings. Concatenations longer than LEAF make
+// ropes, so building a long string piece by piece does not copy it again
+// at every step; short pieces added to a rope's right end are merged into
+// one leaf. Slices and ropes are flattened the first time the whole
+// value is needed (hashing, equality, getValue) and keep it; len and
+// appendTo work on the pieces. The hash is cached like String's, zero
+// meaning not computed yet.
 class MonkeyObjectString extends MonkeyObject implements MonkeyHashable {
+    static final int LEAF = 512;
     private String value;
-
-    public MonkeyObjectString() {
-        type = STRING_OBJ;
-    }
+    private int hash;
+    private boolean interned;
+    private final String base;
+    private final int start;
+    private final MonkeyObjectString left;
+    private final MonkeyObjectString right;
+    private final int length;
 
     public MonkeyObjectString(String value) {
-        this();
         this.value = value;
+        this.base = null;
+        this.start = 0;
+        this.left = null;
+        this.right = null;
+        this.length = value.length();
     }
     
-    public String getValue() {
-        return value;
-    }
-
-    public void setValue(String value) {
-        this.value = value;
+    private MonkeyObjectString(String base, int start, int length) {
+        this.base = base;
+        this.start = start;
+        this.left = null;
+        this.right = null;
+        this.length = length;
     }
     
-    @Override
-    public String inspect() {
-        return String.format("\"%s\"", value);
+    private MonkeyObjectString(MonkeyObjectString left, MonkeyObjectString right) {
+        this.base = null;
+        this.start = 0;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
     }
-
+    
     @Override
-    public String inspectValue() {
-        return value;
+    public MonkeyObjectType getType() {
+        return STRING_OBJ;
     }
 
-    public MonkeyHashKey hashKey() {
-        return new MonkeyHashKey(type, value.hashCode());
+    public int length() {
+        return length;
     }
     
-}
-
-class MonkeyObjectBoolean extends MonkeyObject implements MonkeyHashable {
-    private boolean value;
-
-    public MonkeyObjectBoolean() {
-        type = BOOLEAN_OBJ;
+    public String getValue() {
+        String v = value;
+        if (v == null) {
+            if (base != null) {
+                v = base.substring(start, start + length);
+            } else {
+                StringBuilder out = new StringBuilder(length);
+                try {
+                    appendTo(out);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                v = out.toString();
+            }
+            value = v;
+        }
+        return v;
+    }
+    
+    // Writes the characters piece by piece, without flattening. Ropes are
+    // walked with an explicit stack since appending in a loop makes them
+    // as deep as the loop is long.
+    public void appendTo(Appendable out) throws IOException {
+        List<MonkeyObjectString> stack = new ArrayList<MonkeyObjectString>();
+        stack.add(this);
+        while (!stack.isEmpty()) {
+            MonkeyObjectString s = stack.remove(stack.size() - 1);
+            if (s.value != null) {
+                out.append(s.value);
+            } else if (s.base != null) {
+                out.append(s.base, s.start, s.start + s.length);
+            } else {
+                stack.add(s.right);
+                stack.add(s.left);
+            }
+        }
     }
-
-    public MonkeyObjectBoolean(boolean value) {
-        this();
-        this.value = value;
+    
+    // The canonical object with this value.
+    public MonkeyObjectString intern() {
+        return interned ? this : MonkeyStringTable.intern(this);
     }
     
-    @Override
-    public String inspect() {
-        return String.format("%s", value);
+    void markInterned() {
+        interned = true;
     }
-
-    public MonkeyHashKey hashKey() {
-        int hashValue;
-        if (value) {
-            hashValue = 1;
-        } else {
-            hashValue = 0;
+    
+    public MonkeyObjectString concat(MonkeyObjectString other) {
+        if (other.length == 0) {
+            return this;
+        } else if (length == 0) {
+            return other;
+        } else if (length + other.length <= LEAF) {
+            return new MonkeyObjectString(getValue() + other.getValue());
+        } else if (left != null && value == null && right.length + other.length <= LEAF) {
+            return new MonkeyObjectString(left, 
+                    new MonkeyObjectString(right.getValue() + other.getValue()));
         }
-        return new MonkeyHashKey(getType(), hashValue);
+        return new MonkeyObjectString(this, other);
     }
-}
-
-class MonkeyObjectNull extends MonkeyObject {
-    public MonkeyObjectNull() {
-        type = NULL_OBJ;
+    
+    // Characters from up to to, sharing this string's characters; a rope
+    // is flattened first.
+    public MonkeyObjectString slice(int from, int to) {
+        if (from == 0 && to == length) {
+            return this;
+        } else if (base != null) {
+            return new MonkeyObjectString(base, start + from, to - from);
+        }
+        return new MonkeyObjectString(getValue(), from, to - from);
     }
-
+    
     @Override
     public String inspect() {
-        return "null";
+        return inspectToString();
+    }
+
+    @Override
+    public String inspectValue() {
+        return getValue();
+    }
+    
+    @Override
+    public void inspectTo(Appendable out) throws IOException {
+        out.append('"');
+        appendTo(out);
+        out.append('"');
+    }
+    
+    @Override
+    public void inspectValueTo(Appendable out) throws IOException {
+        appendTo(out);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = getValue().hashCode();
+            hash = h;
+        }
+        return h;
+    }
+    
+    // Interned strings are mostly compared with themselves; otherwise
+    // lengths and cached hashes rule out most unequal pairs before the
+    // characters are compared.
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        } else if (!(obj instanceof MonkeyObjectString)) {
+            return false;
+        }
+        MonkeyObjectString other = (MonkeyObjectString) obj;
+        if (length != other.length) {
+            return false;
+        } else if (hash != 0 && other.hash != 0 && hash != other.hash) {
+            return false;
+        }
+        return getValue().equals(other.getValue());
+    }
+}
+
+// Canonical string objects by value, held weakly: strings from literals
+// and strings stored as hash keys are interned, so equal keys are usually
+// the same object and compare by identity. Entries whose string was
+// collected are dropped on the next insertion.
+class MonkeyStringTable {
+    private static final ConcurrentHashMap<String, MonkeyStringTableEntry> TABLE = 
+            new ConcurrentHashMap<String, MonkeyStringTableEntry>();
+    private static final ReferenceQueue<MonkeyObjectString> COLLECTED = 
+            new ReferenceQueue<MonkeyObjectString>();
+
+    public static MonkeyObjectString intern(MonkeyObjectString s) {
+        String value = s.getValue();
+        MonkeyStringTableEntry e = TABLE.get(value);
+        if (e != null) {
+            MonkeyObjectString o = e.get();
+            if (o != null) {
+                return o;
+            }
+        }
+        expunge();
+        MonkeyStringTableEntry fresh = new MonkeyStringTableEntry(s, value, COLLECTED);
+        while (true) {
+            e = TABLE.get(value);
+            if (e == null) {
+                if (TABLE.putIfAbsent(value, fresh) == null) {
+                    s.markInterned();
+                    return s;
+                }
+            } else {
+                MonkeyObjectString o = e.get();
+                if (o != null) {
+                    return o;
+                } else if (TABLE.replace(value, e, fresh)) {
+                    s.markInterned();
+                    return s;
+                }
+            }
+        }
+    }
+    
+    public static MonkeyObjectString intern(String value) {
+        MonkeyStringTableEntry e = TABLE.get(value);
+        if (e != null) {
+            MonkeyObjectString o = e.get();
+            if (o != null) {
+                return o;
+            }
+        }
+        return intern(new MonkeyObjectString(value));
+    }
+    
+    public static int size() {
+        expunge();
+        return TABLE.size();
+    }
+    
+    private static void expunge() {
+        Reference<? extends MonkeyObjectString> r = COLLECTED.poll();
+        while (r != null) {
+            MonkeyStringTableEntry e = (MonkeyStringTableEntry) r;
+            TABLE.remove(e.getKey(), e);
+            r = COLLECTED.poll();
+        }
+    }
+}
+
+class MonkeyStringTableEntry extends WeakReference<MonkeyObjectString> {
+    private final String key;
+
+    MonkeyStringTableEntry(MonkeyObjectString s, String key, 
+            ReferenceQueue<MonkeyObjectString> queue) {
+        super(s, queue);
+        this.key = key;
+    }
+    
+    public String getKey() {
+        return key;
+    }
+}
+
+class MonkeyObjectBoolean extends MonkeyObject implements MonkeyHashable {
+    private final boolean value;
+
+    public MonkeyObjectBoolean(boolean value) {
+        this.value = value;
+    }
+    
+    @Override
+    public MonkeyObjectType getType() {
+        return BOOLEAN_OBJ;
+    }
+    
+    public boolean getValue() {
+        return value;
+    }
+    
+    @Override
+    public String inspect() {
+        return String.format("%s", value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Boolean.hashCode(value);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MonkeyObjectBoolean 
+                && value == ((MonkeyObjectBoolean) obj).value;
+    }
+}
+
+class MonkeyObjectNull extends MonkeyObject {
+    @Override
+    public MonkeyObjectType getType() {
+        return NULL_OBJ;
+    }
+
+    @Override
+    public String inspect() {
+        return "null";
     }
 }
 
+// Pending-return signal. Each evaluator owns one instance and hands it
+// out in place of a wrapper object; the value is taken back at the
+// enclosing function or program boundary.
 class MonkeyObjectReturnValue extends MonkeyObject {
     private MonkeyObject value;
 
-    public MonkeyObjectReturnValue() {
-        type = RETURN_VALUE_OBJ;
+    @Override
+    public MonkeyObjectType getType() {
+        return RETURN_VALUE_OBJ;
     }
-    
+
     public MonkeyObject getValue () {
         return value;
     }
@@ -1575,47 +2146,88 @@ class MonkeyObjectReturnValue extends MonkeyObject {
         this.value = value;
     }
     
+    public MonkeyObject take() {
+        MonkeyObject ret = value;
+        value = null;
+        return ret;
+    }
+    
     @Override
     public String inspect() {
         return value.inspect();
     }
+    
+    @Override
+    public void inspectTo(Appendable out) throws IOException {
+        value.inspectTo(out);
+    }
+}
+
+class MonkeyObjectTailCall extends MonkeyObject {
+    private MonkeyObject function;
+    private MonkeyEnvironment scope;
+
+    public MonkeyObject getFunction() {
+        return function;
+    }
+
+    // The callee scope with the arguments already bound.
+    public MonkeyEnvironment getScope() {
+        return scope;
+    }
+
+    public void set(MonkeyObject function, MonkeyEnvironment scope) {
+        this.function = function;
+        this.scope = scope;
+    }
 }
 
+// The message is formatted on first use; most errors are only checked
+// and propagated, never printed.
 class MonkeyObjectError extends MonkeyObject {
-    private String value;
+    private final String format;
+    private Object[] args;
     private String message;
 
-    public MonkeyObjectError() {
-        value = "";
-        message = "";
-        type = ERROR_OBJ;
+    public MonkeyObjectError(String message) {
+        this.format = message;
+        this.message = message;
     }
 
-    public MonkeyObjectError(String value, String message) {
-        this();
-        this.value = value;
-        this.message = message;
+    public MonkeyObjectError(String format, Object[] args) {
+        this.format = format;
+        this.args = args;
     }
 
-    public void setMessage(String message) {
-        this.message = message;
+    @Override
+    public MonkeyObjectType getType() {
+        return ERROR_OBJ;
+    }
+
+    public String getMessage() {
+        if (message == null) {
+            message = String.format(format, args);
+            args = null;
+        }
+        return message;
     }
     
     @Override
     public String inspect() {
-        return String.format("ERROR: %s", message);
+        return "ERROR: " + getMessage();
     }
 }
 
 class MonkeyObjectFunction extends MonkeyObject {
-    private List<Identifier> parameters;
-    private BlockStatement body;
-    private MonkeyEnvironment env;
+    private final List<Identifier> parameters;
+    private final BlockStatement body;
+    private final MonkeyEnvironment env;
 
-    public MonkeyObjectFunction() {
-        parameters = new ArrayList<Identifier>();
-        body = new BlockStatement();
-        env = MonkeyEnvironment.newInstance();
+    public MonkeyObjectFunction(List<Identifier> parameters, BlockStatement body, 
+            MonkeyEnvironment env) {
+        this.parameters = parameters;
+        this.body = body;
+        this.env = env;
     }
 
     public List<Identifier> getParameters() {
@@ -1630,38 +2242,108 @@ class MonkeyObjectFunction extends MonkeyObject {
         return env;
     }
     
-    public void setParameter(List<Identifier> parameters) {
-        this.parameters = parameters;
+    @Override
+    public MonkeyObjectType getType() {
+        return FUNCTION_OBJ;
+    }
+
+    @Override
+    public String inspect() {
+        return inspectToString();
     }
     
-    public void setBody(BlockStatement body) {
-        this.body = body;
+    @Override
+    public void inspectTo(Appendable out) throws IOException {
+        out.append("fn");
+        out.append("(");
+        for (int i=0; i<parameters.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            parameters.get(i).writeTo(out);
+        }
+        out.append(")");
+        body.writeTo(out);
+    }
+}
+
+interface MonkeyCompiledBody {
+    MonkeyObject run(MonkeyEvaluator evaluator, MonkeyEnvironment env);
+}
+
+// Runs a compiled program. Compiled calls nest on the Java stack, so the
+// program gets a thread whose stack is sized like the interpreter's frame
+// budget, the maximum heap; recursion deeper than that ends the program
+// with the interpreter's stack overflow error instead of a Java trace.
+class MonkeyCompiledRun implements Runnable {
+    private final MonkeyCompiledBody program;
+    private final PrintStream output;
+
+    MonkeyCompiledRun(MonkeyCompiledBody program, PrintStream output) {
+        this.program = program;
+        this.output = output;
     }
     
-    public void setEnvironment(MonkeyEnvironment env) {
-        this.env = env;
+    public void run() {
+        MonkeyEvaluator evaluator = MonkeyEvaluator.newInstance();
+        evaluator.setOutput(output);
+        MonkeyObject evaluated;
+        try {
+            evaluated = program.run(evaluator, MonkeyEnvironment.newInstance());
+        } catch (StackOverflowError e) {
+            evaluated = evaluator.stackOverflow(evaluator.getCallDepth());
+        }
+        if (evaluated != null) {
+            Compilador.outputInspect(evaluated, output);
+        }
     }
     
+    public void start() {
+        long stack = Long.getLong("monkey.stack", Runtime.getRuntime().maxMemory());
+        Thread t = new Thread(null, this, "monkey", stack);
+        t.start();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+class MonkeyObjectCompiledFunction extends MonkeyObject {
+    private String[] parameters;
+    private MonkeyCompiledBody body;
+    private MonkeyEnvironment env;
+    private String source;
+
+    public MonkeyObjectCompiledFunction(String[] parameters, MonkeyCompiledBody body,
+            MonkeyEnvironment env, String source) {
+        this.parameters = parameters;
+        this.body = body;
+        this.env = env;
+        this.source = source;
+    }
+
+    public String[] getParameters() {
+        return parameters;
+    }
+
+    public MonkeyCompiledBody getBody() {
+        return body;
+    }
+
+    public MonkeyEnvironment getEnvironment() {
+        return env;
+    }
+
     @Override
-    public String getType() {
+    public MonkeyObjectType getType() {
         return FUNCTION_OBJ;
     }
 
     @Override
     public String inspect() {
-        List<String> params = new ArrayList<String>();
-        for (Identifier p: parameters) {
-            params.add(p.toString());
-        }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append("fn");
-        ret.append("(");
-        ret.append(CompiUtil.stringJoin(", ", params));
-        ret.append(")");
-        ret.append(body.toString());
-        //
-        return ret.toString();
+        return source;
     }
 }
 
@@ -1684,7 +2366,7 @@ class MonkeyObjectBuiltin extends MonkeyObject {
     }
     
     @Override
-    public String getType() {
+    public MonkeyObjectType getType() {
         return BUILTIN_OBJ;
     }
 
@@ -1694,838 +2376,4635 @@ class MonkeyObjectBuiltin extends MonkeyObject {
     }
 }
 
-class MonkeyObjectArray extends MonkeyObject {
-    private List<MonkeyObject> elements;
-
-    public MonkeyObjectArray() {
-        elements = new ArrayList<MonkeyObject>();
-    }
-
-    public List<MonkeyObject> getElements() {
-        return elements;
+// Persistent vector: a 32-way trie of full chunks plus a tail chunk, so
+// push copies at most one path and the tail. Versions share structure and
+// are never modified. start hides a prefix, which makes rest a constant
+// time view of the same nodes.
+class MonkeyVector extends AbstractList<MonkeyObject> implements RandomAccess {
+    static final int BITS = 5;
+    static final int WIDTH = 1 << BITS;
+    static final int MASK = WIDTH - 1;
+    static final MonkeyVector EMPTY = new MonkeyVector(0, BITS, new Object[WIDTH], new Object[0], 0);
+    
+    private final int count;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+    private final int start;
+    
+    private MonkeyVector(int count, int shift, Object[] root, Object[] tail, int start) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+        this.start = start;
+    }
+    
+    public static MonkeyVector of(List<MonkeyObject> items) {
+        if (items instanceof MonkeyVector) {
+            return (MonkeyVector) items;
+        }
+        MonkeyVector ret = EMPTY;
+        int n = items.size();
+        for (int i=0; i<n; i+=WIDTH) {
+            int length = Math.min(WIDTH, n - i);
+            Object[] chunk = new Object[length];
+            for (int j=0; j<length; j++) {
+                chunk[j] = items.get(i + j);
+            }
+            ret = ret.withTail(chunk);
+        }
+        return ret;
     }
     
-    public void setElements(List<MonkeyObject> elements) {
-        this.elements = elements;
+    @Override
+    public int size() {
+        return count - start;
     }
     
     @Override
-    public String getType() {
-        return ARRAY_OBJ;
+    public MonkeyObject get(int index) {
+        if (index < 0 || index >= count - start) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        int i = index + start;
+        if (i >= tailOffset()) {
+            return (MonkeyObject) tail[i & MASK];
+        }
+        Object[] node = root;
+        for (int level=shift; level>0; level-=BITS) {
+            node = (Object[]) node[(i >>> level) & MASK];
+        }
+        return (MonkeyObject) node[i & MASK];
     }
-
-    @Override
-    public String inspect() {
-        List<String> list = new ArrayList<String>();
-        for (MonkeyObject e: elements) {
-            list.add(e.inspect());
+    
+    public MonkeyVector push(MonkeyObject value) {
+        if (count - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = value;
+            return new MonkeyVector(count + 1, shift, root, newTail, start);
         }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append("[");
-        ret.append(CompiUtil.stringJoin(", ", list));
-        ret.append("]");
-        //
-        return ret.toString();
+        return withTail(new Object[] {value});
     }
-}
-
-class MonkeyObjectHash extends MonkeyObject {
-    private Map<MonkeyHashKey, MonkeyHashPair> pairs;
-
-    public MonkeyObjectHash() {
-        pairs = new HashMap<MonkeyHashKey, MonkeyHashPair>();
+    
+    // A copy with element index replaced, sharing every node off its path.
+    public MonkeyVector with(int index, MonkeyObject value) {
+        if (index < 0 || index >= count - start) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        int i = index + start;
+        if (i >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[i & MASK] = value;
+            return new MonkeyVector(count, shift, root, newTail, start);
+        }
+        return new MonkeyVector(count, shift, assoc(shift, root, i, value), tail, start);
     }
     
-    public Map<MonkeyHashKey, MonkeyHashPair> getPairs() {
-        return pairs;
+    private static Object[] assoc(int level, Object[] node, int i, Object value) {
+        Object[] ret = node.clone();
+        if (level == 0) {
+            ret[i & MASK] = value;
+        } else {
+            int sub = (i >>> level) & MASK;
+            ret[sub] = assoc(level - BITS, (Object[]) node[sub], i, value);
+        }
+        return ret;
     }
     
-    public void setPairs(Map<MonkeyHashKey, MonkeyHashPair> pairs) {
-        this.pairs = pairs;
+    // Everything but the first element, sharing this vector's nodes.
+    public MonkeyVector rest() {
+        return new MonkeyVector(count, shift, root, tail, Math.min(start + 1, count));
     }
-
-    @Override
-    public String getType() {
-        return HASH_OBJ;
+    
+    private int tailOffset() {
+        if (count < WIDTH) {
+            return 0;
+        }
+        return ((count - 1) >>> BITS) << BITS;
     }
-
-    @Override
-    public String inspect() {
-        List<String> list = new ArrayList<String>();
-        for (MonkeyHashKey k: pairs.keySet()) {
-            MonkeyHashPair v = pairs.get(k);
-            String pair = String.format("%s: %s", v.getKey().inspect(), v.getValue().inspect());
-            list.add(pair);
+    
+    // Moves the current tail, which must be empty or full, into the trie
+    // and starts a new one.
+    private MonkeyVector withTail(Object[] newTail) {
+        if (count == 0) {
+            return new MonkeyVector(newTail.length, shift, root, newTail, start);
         }
-        //
-        StringBuilder ret = new StringBuilder();
-        ret.append("{");
-        ret.append(CompiUtil.stringJoin(", ", list));
-        ret.append("}");
-        //
-        return ret.toString();
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new MonkeyVector(count + newTail.length, newShift, newRoot, newTail, start);
     }
-}
-
-class MonkeyHashKey {
-    private String type;
-    private int value;
-
-    public MonkeyHashKey(String type, int value) {
-        this.type = type;
-        this.value = value;
+    
+    private Object[] pushTail(int level, Object[] parent, Object[] node) {
+        int index = ((count - 1) >>> level) & MASK;
+        Object[] ret = parent.clone();
+        if (level == BITS) {
+            ret[index] = node;
+        } else if (parent[index] != null) {
+            ret[index] = pushTail(level - BITS, (Object[]) parent[index], node);
+        } else {
+            ret[index] = newPath(level - BITS, node);
+        }
+        return ret;
     }
-
-    @Override
-    public boolean equals(Object obj) {
-        if (obj instanceof MonkeyHashKey) {
-            MonkeyHashKey other = (MonkeyHashKey) obj;
-            if (other.type.equals(type) && other.value == value) {
-                return true;
-            }
+    
+    private static Object[] newPath(int level, Object[] node) {
+        if (level == 0) {
+            return node;
         }
-        return false;
+        Object[] ret = new Object[WIDTH];
+        ret[0] = newPath(level - BITS, node);
+        return ret;
     }
+}
 
-    @Override
-    public int hashCode() {
-        String h = String.format("%s-%s", type, value);
-        return h.hashCode();
+// Append-only element storage for arrays holding only integers (one long
+// per slot) or only booleans (one bit per slot). Array versions share a
+// buffer; used is the number of slots claimed, and only the version
+// ending exactly there may claim the next slot and write it in place.
+// Every other push copies.
+class MonkeyPrimitiveBuffer {
+    private final boolean bits;
+    private final long[] data;
+    private final AtomicInteger used;
+    
+    public MonkeyPrimitiveBuffer(boolean bits, int capacity, int used) {
+        this.bits = bits;
+        this.data = new long[bits ? (capacity + 63) >>> 6 : capacity];
+        this.used = new AtomicInteger(used);
     }
-}
     
-class MonkeyHashPair {
-    private MonkeyObject key;
-    private MonkeyObject value;
-
-    public MonkeyHashPair() {
-        key = new MonkeyObject();
-        value = new MonkeyObject();
+    // Integer slots over data, which the buffer takes over, all in use.
+    public MonkeyPrimitiveBuffer(long[] data) {
+        this.bits = false;
+        this.data = data;
+        this.used = new AtomicInteger(data.length);
     }
     
-    public MonkeyObject getKey() {
-        return key;
+    public boolean isBits() {
+        return bits;
     }
     
-    public MonkeyObject getValue() {
-        return value;
+    public int capacity() {
+        return bits ? data.length << 6 : data.length;
     }
     
-    public void setKey(MonkeyObject key) {
-        this.key = key;
+    // Claims slot end for a version whose last slot is end - 1.
+    public boolean claim(int end) {
+        return end < capacity() && used.compareAndSet(end, end + 1);
     }
     
-    public void setValue(MonkeyObject value) {
-        this.value = value;
+    public long getLong(int i) {
+        return data[i];
+    }
+    
+    public boolean getBit(int i) {
+        return (data[i >>> 6] & (1L << i)) != 0;
+    }
+    
+    // Writes a slot nobody else can see yet.
+    public void put(int i, long value) {
+        if (!bits) {
+            data[i] = value;
+        } else if (value != 0) {
+            data[i >>> 6] |= 1L << i;
+        }
+    }
+    
+    public MonkeyPrimitiveBuffer copy(int start, int length, int capacity) {
+        MonkeyPrimitiveBuffer ret = new MonkeyPrimitiveBuffer(bits, capacity, length);
+        if (!bits) {
+            System.arraycopy(data, start, ret.data, 0, length);
+        } else {
+            for (int i=0; i<length; i++) {
+                ret.put(i, getBit(start + i) ? 1 : 0);
+            }
+        }
+        return ret;
     }
 }
 
-class MonkeyEnvironment {
-    private Map<String, MonkeyObject> store;
-    private Map<String, MonkeyObject> outer;
-
-    public MonkeyEnvironment() {
-        store = new HashMap<String, MonkeyObject>();
-        outer = new HashMap<String, MonkeyObject>();
+// Arrays of only (long-range) integers or only booleans keep their
+// elements unboxed in a MonkeyPrimitiveBuffer; anything else uses a
+// MonkeyVector. Element objects are materialized by get, and a push of a
+// value of another kind converts the array to a vector first.
+class MonkeyObjectArray extends MonkeyObject {
+    static final int MIN_CAPACITY = 8;
+    private final MonkeyVector elements;
+    private final MonkeyPrimitiveBuffer buffer;
+    private final int start;
+    private final int length;
+
+    public MonkeyObjectArray(List<MonkeyObject> elements) {
+        MonkeyPrimitiveBuffer b = null;
+        int n = elements.size();
+        if (n > 0 && !(elements instanceof MonkeyVector)) {
+            boolean bits = elements.get(0) instanceof MonkeyObjectBoolean;
+            boolean homogeneous = true;
+            for (int i=0; i<n && homogeneous; i++) {
+                homogeneous = fits(elements.get(i), bits);
+            }
+            if (homogeneous) {
+                b = new MonkeyPrimitiveBuffer(bits, Math.max(n, MIN_CAPACITY), n);
+                for (int i=0; i<n; i++) {
+                    b.put(i, unbox(elements.get(i)));
+                }
+            }
+        }
+        this.buffer = b;
+        this.elements = b == null ? MonkeyVector.of(elements) : null;
+        this.start = 0;
+        this.length = n;
     }
     
-    public MonkeyEnvironment(HashMap<String, MonkeyObject> outer) {
-        this();
-        this.outer = outer;
+    private MonkeyObjectArray(MonkeyPrimitiveBuffer buffer, int start, int length) {
+        this.elements = null;
+        this.buffer = buffer;
+        this.start = start;
+        this.length = length;
     }
     
-    public MonkeyObject get(String name) {
-        MonkeyObject obj = store.get(name);
-        if (obj == null && outer != null) {
-            obj = outer.get(name);
+    static boolean fits(MonkeyObject value, boolean bits) {
+        if (bits) {
+            return value instanceof MonkeyObjectBoolean;
         }
-        return obj;
+        return value instanceof MonkeyObjectInteger && !((MonkeyObjectInteger) value).isBig();
     }
     
-    public MonkeyObject set(String name, MonkeyObject value) {
-        store.put(name, value);
-        return value;
+    static long unbox(MonkeyObject value) {
+        if (value instanceof MonkeyObjectBoolean) {
+            return ((MonkeyObjectBoolean) value).getValue() ? 1 : 0;
+        }
+        return ((MonkeyObjectInteger) value).getLongValue();
     }
     
-    public void debug() {
-        for (String k: store.keySet()) {
-            MonkeyObject v = store.get(k);
-            if (v != null) {
-                Compilador.output(String.format("%s: %s", k, v.inspect()));
+    public int size() {
+        return length;
+    }
+    
+    public MonkeyObject get(int index) {
+        if (buffer == null) {
+            return elements.get(index);
+        }
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        if (buffer.isBits()) {
+            return buffer.getBit(start + index) ? MonkeyEvaluator.TRUE : MonkeyEvaluator.FALSE;
+        }
+        return MonkeyObjectInteger.valueOf(buffer.getLong(start + index));
+    }
+    
+    // True when every element is an integer held unboxed; getLong is
+    // then valid for each index.
+    public boolean isLongArray() {
+        return buffer != null && !buffer.isBits();
+    }
+    
+    public long getLong(int index) {
+        return buffer.getLong(start + index);
+    }
+    
+    public MonkeyObjectArray push(MonkeyObject value) {
+        if (buffer != null && fits(value, buffer.isBits())) {
+            if (buffer.claim(start + length)) {
+                buffer.put(start + length, unbox(value));
+                return new MonkeyObjectArray(buffer, start, length + 1);
             }
+            MonkeyPrimitiveBuffer b = buffer.copy(start, length, 
+                    Math.max(MIN_CAPACITY, length * 2));
+            b.claim(length);
+            b.put(length, unbox(value));
+            return new MonkeyObjectArray(b, 0, length + 1);
         }
+        if (length == 0) {
+            List<MonkeyObject> list = new ArrayList<MonkeyObject>(1);
+            list.add(value);
+            return new MonkeyObjectArray(list);
+        }
+        return new MonkeyObjectArray(getElements().push(value));
     }
     
-    public static MonkeyEnvironment newInstance() {
-        MonkeyEnvironment e = new MonkeyEnvironment();
-        return e;
+    // An integer array over values, which it takes over.
+    public static MonkeyObjectArray ofLongs(long[] values) {
+        return new MonkeyObjectArray(new MonkeyPrimitiveBuffer(values), 0, values.length);
     }
     
-    public static MonkeyEnvironment newInstanceEnclosed(MonkeyEnvironment outer) {
-        MonkeyEnvironment e = new MonkeyEnvironment(MonkeyEnvironment.toMap(outer));
-        return e;
+    // Everything but the first element, sharing this array's storage.
+    public MonkeyObjectArray rest() {
+        if (buffer == null) {
+            return new MonkeyObjectArray(elements.rest());
+        }
+        return new MonkeyObjectArray(buffer, start + 1, length - 1);
+    }
+
+    // The elements as objects; a primitive array is boxed into a new
+    // vector on every call.
+    public MonkeyVector getElements() {
+        if (buffer == null) {
+            return elements;
+        }
+        List<MonkeyObject> list = new ArrayList<MonkeyObject>(length);
+        for (int i=0; i<length; i++) {
+            list.add(get(i));
+        }
+        return MonkeyVector.of(list);
     }
     
-    public static HashMap<String, MonkeyObject> toMap(MonkeyEnvironment env) {
-        HashMap<String, MonkeyObject> ret = new HashMap<String, MonkeyObject>();
-        for (String k: env.store.keySet()) {
-            MonkeyObject v = env.store.get(k);
-            ret.put(k, v);
+    @Override
+    public MonkeyObjectType getType() {
+        return ARRAY_OBJ;
+    }
+
+    @Override
+    public String inspect() {
+        return inspectToString();
+    }
+    
+    @Override
+    public void inspectTo(Appendable out) throws IOException {
+        out.append("[");
+        for (int i=0; i<length; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            if (isLongArray()) {
+                out.append(Long.toString(getLong(i)));
+            } else {
+                get(i).inspectTo(out);
+            }
         }
-        return ret;
+        out.append("]");
     }
 }
 
-interface MonkeyBuiltinCallable {
-    MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args);
-}
+// Fixed-size byte buffer outside the Java heap, little-endian. Only
+// absolute ByteBuffer accessors are used, so a buffer has no position
+// state and can be read from several threads. Mapped files are read-only.
+class MonkeyObjectBuffer extends MonkeyObject {
+    private final ByteBuffer buffer;
 
-class MonkeyBuiltinFunctionLen implements MonkeyBuiltinCallable {
-    public MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
-        if (args.size() != 1) {
-            return evaluator.newError(
-                    String.format("wrong number of arguments, got=%s, want=1",
-                            args.size()));
+    public MonkeyObjectBuffer(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    public static MonkeyObjectBuffer allocate(int size) {
+        return new MonkeyObjectBuffer(ByteBuffer.allocateDirect(size));
+    }
+    
+    public static MonkeyObjectBuffer map(File f) throws IOException {
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            return new MonkeyObjectBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            channel.close();
         }
-        
-        MonkeyObject a = args.get(0);
-        if (a instanceof MonkeyObjectString) {
-            MonkeyObjectString s = (MonkeyObjectString) a;
-            MonkeyObjectInteger o = new MonkeyObjectInteger(s.getValue().length());
-            return o;
-        } else if (a instanceof MonkeyObjectArray) {
-            MonkeyObjectArray s = (MonkeyObjectArray) a;
-            MonkeyObjectInteger o = new MonkeyObjectInteger(s.getElements().size());
-            return o;
-        } else {
-            return evaluator.newError(
-                            String.format("argument to \"len\" not supported, got %s", 
-                                    a.getType()));
+    }
+    
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+    
+    public int size() {
+        return buffer.capacity();
+    }
+    
+    public boolean isReadOnly() {
+        return buffer.isReadOnly();
+    }
+    
+    // True when width bytes starting at offset lie inside the buffer.
+    public boolean contains(long offset, int width) {
+        return offset >= 0 && offset <= buffer.capacity() - width;
+    }
+    
+    // Shares the bytes of this buffer; nothing is copied.
+    public MonkeyObjectBuffer slice(int offset, int length) {
+        return new MonkeyObjectBuffer(buffer.slice(offset, length));
+    }
+    
+    public long read(int offset, int width) {
+        switch (width) {
+        case 1:
+            return buffer.get(offset) & 0xff;
+        case 4:
+            return buffer.getInt(offset);
+        default:
+            return buffer.getLong(offset);
+        }
+    }
+    
+    public void write(int offset, int width, long value) {
+        switch (width) {
+        case 1:
+            buffer.put(offset, (byte) value);
+            break;
+        case 4:
+            buffer.putInt(offset, (int) value);
+            break;
+        default:
+            buffer.putLong(offset, value);
+            break;
         }
     }
+    
+    @Override
+    public MonkeyObjectType getType() {
+        return BUFFER_OBJ;
+    }
+
+    @Override
+    public String inspect() {
+        return String.format("buffer(%s)", buffer.capacity());
+    }
 }
 
-class MonkeyBuiltinFunctionFirst implements MonkeyBuiltinCallable {
-    public MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
-        if (args.size() != 1) {
-            return evaluator.newError(
-                    String.format("wrong number of arguments, got=%s, want=1",
-                            args.size()));
+// Lazy sequence: a range or an array as source, then a chain of map,
+// filter and take stages, each pointing at the sequence it was built
+// on. Building a chain computes nothing. A MonkeySequenceCursor flattens
+// the chain and pushes each source element through every stage in one
+// loop, so a pipeline holds one element at a time and never builds
+// intermediate arrays.
+class MonkeyObjectSequence extends MonkeyObject {
+    static final int RANGE = 0;
+    static final int ARRAY = 1;
+    static final int MAP = 2;
+    static final int FILTER = 3;
+    static final int TAKE = 4;
+    private final int kind;
+    private final MonkeyObjectSequence parent;
+    private final MonkeyObject fn;
+    private final MonkeyObjectArray array;
+    // range start, step and element count; the count of take
+    private final long start;
+    private final long step;
+    private final long count;
+
+    private MonkeyObjectSequence(int kind, MonkeyObjectSequence parent, MonkeyObject fn, 
+            MonkeyObjectArray array, long start, long step, long count) {
+        this.kind = kind;
+        this.parent = parent;
+        this.fn = fn;
+        this.array = array;
+        this.start = start;
+        this.step = step;
+        this.count = count;
+    }
+    
+    public static MonkeyObjectSequence range(long start, long step, long count) {
+        return new MonkeyObjectSequence(RANGE, null, null, null, start, step, count);
+    }
+    
+    public static MonkeyObjectSequence map(MonkeyObjectSequence parent, MonkeyObject fn) {
+        return new MonkeyObjectSequence(MAP, parent, fn, null, 0, 0, 0);
+    }
+    
+    public static MonkeyObjectSequence filter(MonkeyObjectSequence parent, MonkeyObject fn) {
+        return new MonkeyObjectSequence(FILTER, parent, fn, null, 0, 0, 0);
+    }
+    
+    public static MonkeyObjectSequence take(MonkeyObjectSequence parent, long count) {
+        return new MonkeyObjectSequence(TAKE, parent, null, null, 0, 0, count);
+    }
+    
+    // Arrays are viewed as sequences; anything else answers null.
+    public static MonkeyObjectSequence of(MonkeyObject o) {
+        if (o instanceof MonkeyObjectSequence) {
+            return (MonkeyObjectSequence) o;
+        } else if (o instanceof MonkeyObjectArray) {
+            MonkeyObjectArray a = (MonkeyObjectArray) o;
+            return new MonkeyObjectSequence(ARRAY, null, null, a, 0, 0, a.size());
         }
-        
-        MonkeyObject a = args.get(0);
-        if (!(a instanceof MonkeyObjectArray)) {
-            return evaluator.newError(
-                            String.format("argument to \"first\" must be ARRAY, got %s", 
-                                    a.getType()));
-        };
-        MonkeyObjectArray s = (MonkeyObjectArray) a;
-        if (s.getElements().size() > 0) {
-            return s.getElements().get(0);
+        return null;
+    }
+    
+    int getKind() {
+        return kind;
+    }
+    
+    MonkeyObjectSequence getParent() {
+        return parent;
+    }
+    
+    MonkeyObject getFunction() {
+        return fn;
+    }
+    
+    long getCount() {
+        return count;
+    }
+    
+    // Element i of a range or array source.
+    MonkeyObject sourceAt(long i) {
+        if (kind == RANGE) {
+            return MonkeyObjectInteger.valueOf(start + i * step);
+        }
+        return array.get((int) i);
+    }
+    
+    // Number of elements, or -1 when only a full pass can tell.
+    public long size() {
+        switch (kind) {
+        case RANGE:
+        case ARRAY:
+            return count;
+        case MAP:
+            return parent.size();
+        case TAKE: {
+            long n = parent.size();
+            return n < 0 ? -1 : Math.min(n, count);
+        }
+        default:
+            return -1;
         }
-        //
-        return MonkeyEvaluator.NULL;
     }
-}
-
-class MonkeyBuiltinFunctionLast implements MonkeyBuiltinCallable {
-    public MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
-        if (args.size() != 1) {
-            return evaluator.newError(
-                    String.format("wrong number of arguments, got=%s, want=1",
-                            args.size()));
+    
+    // Element i, or null past the end; an error from a stage is answered
+    // as the element. Ranges, arrays, maps and takes over them go
+    // straight to the element, chains with a filter walk up to it.
+    public MonkeyObject get(MonkeyEvaluator evaluator, long i) {
+        long n = size();
+        if (n >= 0) {
+            if (i >= n) {
+                return null;
+            } else if (kind == MAP) {
+                MonkeyObject x = parent.get(evaluator, i);
+                if (x == null || x instanceof MonkeyObjectError) {
+                    return x;
+                }
+                return evaluator.apply1(fn, x, false);
+            } else if (kind == TAKE) {
+                return parent.get(evaluator, i);
+            }
+            return sourceAt(i);
         }
-        
-        MonkeyObject a = args.get(0);
-        if (!(a instanceof MonkeyObjectArray)) {
-            return evaluator.newError(
-                            String.format("argument to \"last\" must be ARRAY, got %s", 
-                                    a.getType()));
-        };
-        MonkeyObjectArray s = (MonkeyObjectArray) a;
-        int length = s.getElements().size();
-        if (length > 0) {
-            return s.getElements().get(length - 1);
+        MonkeySequenceCursor c = cursor(evaluator);
+        MonkeyObject x = c.next();
+        while (i > 0 && x != null && !(x instanceof MonkeyObjectError)) {
+            x = c.next();
+            i--;
         }
-        //
-        return MonkeyEvaluator.NULL;
+        return x;
     }
-}
-
-class MonkeyBuiltinFunctionRest implements MonkeyBuiltinCallable {
-    public MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
-        if (args.size() != 1) {
-            return evaluator.newError(
-                    String.format("wrong number of arguments, got=%s, want=1",
-                            args.size()));
+    
+    public MonkeySequenceCursor cursor(MonkeyEvaluator evaluator) {
+        return new MonkeySequenceCursor(evaluator, this);
+    }
+    
+    // All elements in an array, or the first error a stage answers.
+    public MonkeyObject toArray(MonkeyEvaluator evaluator) {
+        long n = size();
+        if (n > Integer.MAX_VALUE - 8) {
+            return evaluator.newError("sequence too long for an array: %s", n);
         }
-        
-        MonkeyObject a = args.get(0);
-        if (!(a instanceof MonkeyObjectArray)) {
-            return evaluator.newError(
-                            String.format("argument to \"rest\" must be ARRAY, got %s", 
-                                    a.getType()));
-        };
-        MonkeyObjectArray s = (MonkeyObjectArray) a;
-        List<MonkeyObject> elements = s.getElements();
-        int length = elements.size();
-        if (length > 0) {
-            List<MonkeyObject> list = new ArrayList<MonkeyObject>();
-            for (int i=1; i<length; i++) {
-                list.add(elements.get(i));
+        List<MonkeyObject> list = new ArrayList<MonkeyObject>(n < 0 ? 10 : (int) n);
+        MonkeySequenceCursor c = cursor(evaluator);
+        MonkeyObject x = c.next();
+        while (x != null) {
+            if (x instanceof MonkeyObjectError) {
+                return x;
             }
-            MonkeyObjectArray o = new MonkeyObjectArray();
-            o.setElements(list);
-            //
-            return o;
+            list.add(x);
+            x = c.next();
         }
-        //
-        return MonkeyEvaluator.NULL;
+        return new MonkeyObjectArray(list);
+    }
+    
+    @Override
+    public MonkeyObjectType getType() {
+        return SEQUENCE_OBJ;
+    }
+    
+    @Override
+    public String inspect() {
+        return "sequence";
     }
 }
 
-class MonkeyBuiltinFunctionPush implements MonkeyBuiltinCallable {
-    public MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
-        if (args.size() != 2) {
-            return evaluator.newError(
-                    String.format("wrong number of arguments, got=%s, want=2",
-                            args.size()));
+// One pass over a sequence. next answers the following element, null at
+// the end, or the first error a stage produced.
+class MonkeySequenceCursor {
+    private final MonkeyEvaluator evaluator;
+    private final MonkeyObjectSequence source;
+    private final MonkeyObjectSequence[] stages;
+    private final long[] taken;
+    private final long size;
+    private long next;
+
+    MonkeySequenceCursor(MonkeyEvaluator evaluator, MonkeyObjectSequence sequence) {
+        int n = 0;
+        MonkeyObjectSequence s = sequence;
+        while (s.getParent() != null) {
+            s = s.getParent();
+            n++;
         }
-        
-        MonkeyObject a = args.get(0);
-        if (!(a instanceof MonkeyObjectArray)) {
-            return evaluator.newError(
-                            String.format("argument to \"push\" must be ARRAY, got %s", 
-                                    a.getType()));
-        };
-        
-        MonkeyObjectArray s = (MonkeyObjectArray) a;
-        List<MonkeyObject> elements = s.getElements();
-        int length = elements.size();
-        
-        List<MonkeyObject> list = new ArrayList<MonkeyObject>();
-        for (int i=0; i<length; i++) {
-            list.add(elements.get(i));
+        this.evaluator = evaluator;
+        this.source = s;
+        this.stages = new MonkeyObjectSequence[n];
+        this.taken = new long[n];
+        this.size = s.size();
+        s = sequence;
+        for (int i=n - 1; i>=0; i--) {
+            stages[i] = s;
+            s = s.getParent();
         }
-        try {
-            list.add(args.get(1));
-        } catch (Exception e) {
-                return MonkeyEvaluator.NULL; 
+    }
+    
+    public MonkeyObject next() {
+        // a spent take lets nothing more through, so stop before pulling
+        // elements the stages in front of it would compute for nothing
+        for (int i=0; i<stages.length; i++) {
+            if (stages[i].getKind() == MonkeyObjectSequence.TAKE 
+                    && taken[i] >= stages[i].getCount()) {
+                return null;
+            }
         }
-        
-        MonkeyObjectArray o = new MonkeyObjectArray();
-        o.setElements(list);
-        //
-        return o;
+        while (next < size) {
+            MonkeyObject x = source.sourceAt(next++);
+            boolean keep = true;
+            for (int i=0; i<stages.length && keep; i++) {
+                MonkeyObjectSequence s = stages[i];
+                switch (s.getKind()) {
+                case MonkeyObjectSequence.MAP:
+                    x = evaluator.apply1(s.getFunction(), x, false);
+                    if (x instanceof MonkeyObjectError) {
+                        return x;
+                    }
+                    break;
+                case MonkeyObjectSequence.FILTER: {
+                    MonkeyObject t = evaluator.apply1(s.getFunction(), x, false);
+                    if (t instanceof MonkeyObjectError) {
+                        return t;
+                    }
+                    keep = evaluator.isTruthy(t);
+                    break;
+                }
+                default:
+                    // stages after a spent take may still be rejecting
+                    // elements, so the take is checked here too
+                    if (taken[i] >= s.getCount()) {
+                        return null;
+                    }
+                    taken[i] += 1;
+                    break;
+                }
+            }
+            if (keep) {
+                return x;
+            }
+        }
+        return null;
     }
 }
 
-class MonkeyBuiltinFunctionPuts implements MonkeyBuiltinCallable {
-    public MonkeyObject call(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
-        for (MonkeyObject a: args) {
-            Compilador.output(a.inspectValue(), evaluator.getOutput());
+// Node of a hash array mapped trie. Each level consumes five bits of the
+// key hash; nodes are never modified, updates copy the path they touch.
+// remove answers null once a node is empty.
+abstract class MonkeyHamtNode {
+    static final int BITS = 5;
+    static final int MASK = (1 << BITS) - 1;
+    
+    abstract Object find(int shift, int hash, Object key);
+    
+    abstract MonkeyHamtNode put(int shift, int hash, Object key, Object value, boolean[] added);
+    
+    abstract MonkeyHamtNode remove(int shift, int hash, Object key);
+    
+    static MonkeyHamtNode pair(int shift, Object key1, Object value1, 
+            int hash2, Object key2, Object value2) {
+        int hash1 = key1.hashCode();
+        if (hash1 == hash2) {
+            return new MonkeyHamtCollisionNode(hash1, new Object[] {key1, value1, key2, value2});
         }
-        //
-        return MonkeyEvaluator.NULL;        
+        boolean[] added = new boolean[1];
+        return MonkeyHamtBitmapNode.EMPTY
+                .put(shift, hash1, key1, value1, added)
+                .put(shift, hash2, key2, value2, added);
     }
 }
 
-class MonkeyBuiltins {
-    public static final Map<String, MonkeyObjectBuiltin> BUILTINS;
-    static {
-        BUILTINS = new HashMap<String, MonkeyObjectBuiltin>();
-        BUILTINS.put("len", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionLen()));
-        BUILTINS.put("first", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionFirst()));
-        BUILTINS.put("last", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionLast()));
-        BUILTINS.put("rest", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionRest()));
-        BUILTINS.put("push", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionPush()));
-        BUILTINS.put("puts", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionPuts()));
-    }
+// Keys and values of the present slots, packed in bitmap order. A null
+// key marks a slot holding a child node in place of the value.
+class MonkeyHamtBitmapNode extends MonkeyHamtNode {
+    static final MonkeyHamtBitmapNode EMPTY = new MonkeyHamtBitmapNode(0, new Object[0]);
     
-    public static MonkeyObjectBuiltin get(String name) {
-        return BUILTINS.get(name);
+    private final int bitmap;
+    private final Object[] array;
+    
+    MonkeyHamtBitmapNode(int bitmap, Object[] array) {
+        this.bitmap = bitmap;
+        this.array = array;
     }
-}
-
-class MonkeyEvaluator {
-    public static MonkeyObjectNull NULL = new MonkeyObjectNull();
-    public static MonkeyObjectBoolean TRUE = new MonkeyObjectBoolean(true);
-    public static MonkeyObjectBoolean FALSE = new MonkeyObjectBoolean(false);
-
-    private PrintStream output;
-
-    public MonkeyEvaluator() {
-        output = System.out;
+    
+    private int index(int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
     }
     
-    public MonkeyEvaluator(PrintStream output) {
-        this.output = output;
+    Object find(int shift, int hash, Object key) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((bitmap & bit) == 0) {
+            return null;
+        }
+        int i = 2 * index(bit);
+        Object k = array[i];
+        if (k == null) {
+            return ((MonkeyHamtNode) array[i + 1]).find(shift + BITS, hash, key);
+        } else if (key.equals(k)) {
+            return array[i + 1];
+        }
+        return null;
     }
     
-    MonkeyObject eval(Object node, MonkeyEnvironment env) {
-        if (node instanceof MonkeyProgram) {
-            MonkeyProgram s = (MonkeyProgram) node;
-            return evalProgram(s, env);
-        } else if (node instanceof ExpressionStatement) {
-            ExpressionStatement s = (ExpressionStatement) node;
-            return eval(s.getExpression(), env);
-        } else if (node instanceof IntegerLiteral) {
-            IntegerLiteral s = (IntegerLiteral) node;
-            MonkeyObjectInteger o = new MonkeyObjectInteger(s.getValue());
-            return o;
-        } else if (node instanceof MonkeyBoolean) {
-            MonkeyBoolean s = (MonkeyBoolean) node;
-            return getBoolean(s.getValue());
-        } else if (node instanceof MonkeyPrefixExpression) {
-            MonkeyPrefixExpression s = (MonkeyPrefixExpression) node;
-            MonkeyObject right = eval(s.getRight(), env);
-            if (isError(right)) {
-                return right;
-            }
-            //
-            return evalPrefixExpression(s.getOperator(), right);
-        } else if (node instanceof MonkeyInfixExpression) {
-            MonkeyInfixExpression s = (MonkeyInfixExpression) node;
-            MonkeyObject left = eval(s.getLeft(), env);
-            if (isError(left)) {
-                return left;
+    MonkeyHamtNode put(int shift, int hash, Object key, Object value, boolean[] added) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int i = 2 * index(bit);
+        if ((bitmap & bit) == 0) {
+            Object[] copy = new Object[array.length + 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            copy[i] = key;
+            copy[i + 1] = value;
+            System.arraycopy(array, i, copy, i + 2, array.length - i);
+            added[0] = true;
+            return new MonkeyHamtBitmapNode(bitmap | bit, copy);
+        }
+        Object k = array[i];
+        Object v = array[i + 1];
+        Object replacement;
+        if (k == null) {
+            MonkeyHamtNode child = ((MonkeyHamtNode) v).put(shift + BITS, hash, key, value, added);
+            if (child == v) {
+                return this;
             }
-            //
-            MonkeyObject right = eval(s.getRight(), env);
-            if (isError(right)) {
-                return right;
+            replacement = child;
+        } else if (key.equals(k)) {
+            if (value == v) {
+                return this;
             }
-            //
-            return evalInfixExpression(s.getOperator(), left, right);
-        } else if (node instanceof BlockStatement) {
-            BlockStatement s = (BlockStatement) node;
-            return evalBlockStatement(s, env);
-        } else if (node instanceof MonkeyIfExpression) {
-            MonkeyIfExpression s = (MonkeyIfExpression) node;
-            return evalIfExpression(s, env);
-        } else if (node instanceof ReturnStatement) {
-            ReturnStatement s = (ReturnStatement) node;
-            MonkeyObject val = eval(s.getReturnValue(), env);
-            if (isError(val)) {
-                return val;
+            replacement = value;
+        } else {
+            added[0] = true;
+            replacement = pair(shift + BITS, k, v, hash, key, value);
+        }
+        Object[] copy = array.clone();
+        if (k != null && replacement instanceof MonkeyHamtNode) {
+            copy[i] = null;
+        }
+        copy[i + 1] = replacement;
+        return new MonkeyHamtBitmapNode(bitmap, copy);
+    }
+    
+    MonkeyHamtNode remove(int shift, int hash, Object key) {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((bitmap & bit) == 0) {
+            return this;
+        }
+        int i = 2 * index(bit);
+        Object k = array[i];
+        if (k == null) {
+            MonkeyHamtNode child = (MonkeyHamtNode) array[i + 1];
+            MonkeyHamtNode n = child.remove(shift + BITS, hash, key);
+            if (n == child) {
+                return this;
+            } else if (n != null) {
+                Object[] copy = array.clone();
+                copy[i + 1] = n;
+                return new MonkeyHamtBitmapNode(bitmap, copy);
             }
-            //
-            MonkeyObjectReturnValue o = new MonkeyObjectReturnValue();
-            o.setValue(val);
-            return o;
-        } else if (node instanceof LetStatement) {
-            LetStatement s = (LetStatement) node;
-            MonkeyObject val = eval(s.getValue(), env);
-            if (isError(val)) {
-                return val;
+        } else if (!key.equals(k)) {
+            return this;
+        }
+        if (bitmap == bit) {
+            return null;
+        }
+        Object[] copy = new Object[array.length - 2];
+        System.arraycopy(array, 0, copy, 0, i);
+        System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+        return new MonkeyHamtBitmapNode(bitmap ^ bit, copy);
+    }
+}
+
+// Keys whose full 32-bit hashes are equal, searched linearly.
+class MonkeyHamtCollisionNode extends MonkeyHamtNode {
+    private final int hash;
+    private final Object[] array;
+    
+    MonkeyHamtCollisionNode(int hash, Object[] array) {
+        this.hash = hash;
+        this.array = array;
+    }
+    
+    private int indexOf(Object key) {
+        for (int i=0; i<array.length; i+=2) {
+            if (key.equals(array[i])) {
+                return i;
             }
-            //
-            env.set(s.getName().getValue(), val);
-        } else if (node instanceof Identifier) {
-            Identifier s = (Identifier) node;
-            return evalIdentifier(s, env);
-        } else if (node instanceof MonkeyFunctionLiteral) {
-            MonkeyFunctionLiteral s = (MonkeyFunctionLiteral) node;
-            List<Identifier> params = s.getParameters();
-            BlockStatement body = s.getBody();
-            //
-            MonkeyObjectFunction o = new MonkeyObjectFunction();
-            o.setParameter(params);
-            o.setBody(body);
-            o.setEnvironment(env);
-            return o;
-        } else if (node instanceof MonkeyCallExpression) {
-            MonkeyCallExpression s = (MonkeyCallExpression) node;
-            MonkeyObject function = eval(s.getFunction(), env);
-            if (isError(function)) {
-                return function;
+        }
+        return -1;
+    }
+    
+    Object find(int shift, int hash, Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : array[i + 1];
+    }
+    
+    MonkeyHamtNode put(int shift, int hash, Object key, Object value, boolean[] added) {
+        if (hash != this.hash) {
+            // split: this node moves one level down next to the new key
+            MonkeyHamtNode n = new MonkeyHamtBitmapNode(1 << ((this.hash >>> shift) & MASK), 
+                    new Object[] {null, this});
+            return n.put(shift, hash, key, value, added);
+        }
+        int i = indexOf(key);
+        if (i >= 0) {
+            if (array[i + 1] == value) {
+                return this;
             }
-            //
-            List<MonkeyObject> args = evalExpressions(s.getArguments(), env);
-            if (args.size() == 1 && isError(args.get(0))) {
-                return args.get(0);
+            Object[] copy = array.clone();
+            copy[i + 1] = value;
+            return new MonkeyHamtCollisionNode(hash, copy);
+        }
+        Object[] copy = Arrays.copyOf(array, array.length + 2);
+        copy[array.length] = key;
+        copy[array.length + 1] = value;
+        added[0] = true;
+        return new MonkeyHamtCollisionNode(hash, copy);
+    }
+    
+    MonkeyHamtNode remove(int shift, int hash, Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return this;
+        } else if (array.length == 2) {
+            return null;
+        }
+        Object[] copy = new Object[array.length - 2];
+        System.arraycopy(array, 0, copy, 0, i);
+        System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+        return new MonkeyHamtCollisionNode(hash, copy);
+    }
+}
+
+// Compact table behind small hashes, laid out like CPython's dict: the
+// entries sit densely in insertion order (keys and values interleaved,
+// key hashes alongside) and a sparse open-addressing index, at most two
+// thirds full, maps probe slots to entry numbers. The index holds entry
+// number + 1 (zero is empty) in the narrowest array type that fits, so a
+// small record pays one byte per slot. Keys are the hashable objects
+// themselves compared with equals; a lookup allocates nothing.
+//
+// put fills the table while a literal is evaluated; once a hash owns it
+// the table is only read, and with/without answer updated copies.
+class MonkeyHashTable {
+    private MonkeyObject[] entries;
+    private int[] hashes;
+    private Object index;
+    private int size;
+
+    public MonkeyHashTable(int expected) {
+        this.entries = new MonkeyObject[2 * expected];
+        this.hashes = new int[expected];
+        reindex();
+    }
+    
+    private MonkeyHashTable(MonkeyObject[] entries, int[] hashes, Object index, int size) {
+        this.entries = entries;
+        this.hashes = hashes;
+        this.size = size;
+        this.index = index;
+        if (index == null) {
+            reindex();
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    // Entries are numbered 0 to size - 1 in insertion order.
+    public MonkeyObject keyAt(int i) {
+        return entries[2 * i];
+    }
+    
+    public MonkeyObject valueAt(int i) {
+        return entries[2 * i + 1];
+    }
+    
+    private int indexLength() {
+        Object ix = index;
+        if (ix instanceof byte[]) {
+            return ((byte[]) ix).length;
+        } else if (ix instanceof short[]) {
+            return ((short[]) ix).length;
+        }
+        return ((int[]) ix).length;
+    }
+    
+    private int entryAt(int slot) {
+        Object ix = index;
+        if (ix instanceof byte[]) {
+            return ((byte[]) ix)[slot] & 0xff;
+        } else if (ix instanceof short[]) {
+            return ((short[]) ix)[slot] & 0xffff;
+        }
+        return ((int[]) ix)[slot];
+    }
+    
+    private void setEntryAt(int slot, int entry) {
+        Object ix = index;
+        if (ix instanceof byte[]) {
+            ((byte[]) ix)[slot] = (byte) entry;
+        } else if (ix instanceof short[]) {
+            ((short[]) ix)[slot] = (short) entry;
+        } else {
+            ((int[]) ix)[slot] = entry;
+        }
+    }
+    
+    // Rebuilds the index for the current capacity, hashes.length.
+    private void reindex() {
+        int capacity = hashes.length;
+        int length = 8;
+        while (length * 2 < capacity * 3) {
+            length <<= 1;
+        }
+        if (capacity < 255) {
+            index = new byte[length];
+        } else if (capacity < 65535) {
+            index = new short[length];
+        } else {
+            index = new int[length];
+        }
+        int mask = length - 1;
+        for (int e=0; e<size; e++) {
+            int slot = first(hashes[e], mask);
+            while (entryAt(slot) != 0) {
+                slot = (slot + 1) & mask;
             }
-            //
-            return applyFunction(function, args);
-        } else if (node instanceof MonkeyStringLiteral) {
-            MonkeyStringLiteral s = (MonkeyStringLiteral) node;
-            MonkeyObjectString o = new MonkeyObjectString(s.getValue());
-            return o;
-        } else if (node instanceof MonkeyArrayLiteral) {
-            MonkeyArrayLiteral s = (MonkeyArrayLiteral) node;
-            List<MonkeyObject> elements = evalExpressions(s.getElements(), env);
-            if (elements.size() == 1 && isError(elements.get(0))) {
-                return elements.get(0);
+            setEntryAt(slot, e + 1);
+        }
+    }
+    
+    // hashCode of small integers is the value itself; fold the high bits
+    // in so they still spread over the low-bit slots.
+    private static int first(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+    
+    // The slot holding key, or the empty slot where it would go.
+    private int probe(int hash, MonkeyObject key) {
+        int mask = indexLength() - 1;
+        int slot = first(hash, mask);
+        while (true) {
+            int e = entryAt(slot) - 1;
+            if (e < 0) {
+                return slot;
             }
-            //
-            MonkeyObjectArray o = new MonkeyObjectArray();
-            o.setElements(elements);
-            return o;
-        } else if (node instanceof MonkeyIndexExpression) {
-            MonkeyIndexExpression s = (MonkeyIndexExpression) node;
-            MonkeyObject left = eval(s.getLeft(), env);
-            if (isError(left)) {
-                return left;
+            MonkeyObject k = entries[2 * e];
+            if (k == key || (hashes[e] == hash && key.equals(k))) {
+                return slot;
             }
-            //
-            MonkeyObject index = eval(s.getIndex(), env);
-            if (isError(index)) {
-                return index;
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    public MonkeyObject get(MonkeyObject key) {
+        int e = entryAt(probe(key.hashCode(), key));
+        return e == 0 ? null : entries[2 * e - 1];
+    }
+    
+    public void put(MonkeyObject key, MonkeyObject value) {
+        int hash = key.hashCode();
+        int slot = probe(hash, key);
+        int e = entryAt(slot);
+        if (e != 0) {
+            entries[2 * e - 1] = value;
+            return;
+        }
+        if (size == hashes.length) {
+            int capacity = size + (size >> 1) + 1;
+            entries = Arrays.copyOf(entries, 2 * capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            reindex();
+            slot = probe(hash, key);
+        }
+        entries[2 * size] = key;
+        entries[2 * size + 1] = value;
+        hashes[size] = hash;
+        size++;
+        setEntryAt(slot, size);
+    }
+    
+    // A copy with key bound to value; a new key goes last. Replacing a
+    // value shares the hashes and the index with this table.
+    public MonkeyHashTable with(MonkeyObject key, MonkeyObject value) {
+        int hash = key.hashCode();
+        int e = entryAt(probe(hash, key));
+        if (e != 0) {
+            if (entries[2 * e - 1] == value) {
+                return this;
             }
-            //
-            return evalIndexExpression(left, index);
-        } else if (node instanceof MonkeyHashLiteral) {
-            MonkeyHashLiteral s = (MonkeyHashLiteral) node;
-            return evalHashLiteral(s, env);
+            MonkeyObject[] copy = entries.clone();
+            copy[2 * e - 1] = value;
+            return new MonkeyHashTable(copy, hashes, index, size);
         }
-        
-        return null;
+        MonkeyObject[] copy = Arrays.copyOf(entries, 2 * size + 2);
+        copy[2 * size] = key;
+        copy[2 * size + 1] = value;
+        int[] h = Arrays.copyOf(hashes, size + 1);
+        h[size] = hash;
+        return new MonkeyHashTable(copy, h, null, size + 1);
+    }
+    
+    // A copy without key; the others keep their order.
+    public MonkeyHashTable without(MonkeyObject key) {
+        int e = entryAt(probe(key.hashCode(), key)) - 1;
+        if (e < 0) {
+            return this;
+        }
+        MonkeyObject[] copy = new MonkeyObject[2 * size - 2];
+        System.arraycopy(entries, 0, copy, 0, 2 * e);
+        System.arraycopy(entries, 2 * e + 2, copy, 2 * e, 2 * (size - e - 1));
+        int[] h = new int[size - 1];
+        System.arraycopy(hashes, 0, h, 0, e);
+        System.arraycopy(hashes, e + 1, h, e, size - e - 1);
+        return new MonkeyHashTable(copy, h, null, size - 1);
     }
+}
 
-    MonkeyObject evalProgram(MonkeyProgram program, MonkeyEnvironment env) {
-        MonkeyObject ret = new MonkeyObject();
-        for (Statement s: program.getStatements()) {
-            ret = eval(s, env);
-            //
-            if (ret instanceof MonkeyObjectReturnValue) {
-                MonkeyObjectReturnValue o = (MonkeyObjectReturnValue) ret;
-                return o.getValue();
-            } else if (ret instanceof MonkeyObjectError) {
-                MonkeyObjectError o = (MonkeyObjectError) ret;
-                return o;
+// Hidden class of a string-keyed record hash: its keys in insertion
+// order, key i living in slot i of the hash's value array. Hashes built
+// with the same keys in the same order share one shape. Shapes form a
+// tree rooted at ROOT, one child per added key. A child holds its parent,
+// but a parent holds its children only weakly, so shapes no live hash or
+// index site uses are collected together with their keys, and scripts
+// putting data-derived keys leave nothing behind once they finish.
+// Children are published copy-on-write under the parent's lock, so
+// threads building equal records agree on the shape. A shape stops
+// growing at MAX_SLOTS keys or MAX_TRANSITIONS live children, and
+// transition answers null, leaving the hash to a table.
+class MonkeyShape {
+    static final int MAX_SLOTS = 32;
+    static final int MAX_TRANSITIONS = 64;
+    static final MonkeyShape ROOT = new MonkeyShape(null, new MonkeyObjectString[0]);
+    private final MonkeyShape parent;
+    private final MonkeyObjectString[] keys;
+    private volatile List<WeakReference<MonkeyShape>> transitions;
+
+    private MonkeyShape(MonkeyShape parent, MonkeyObjectString[] keys) {
+        this.parent = parent;
+        this.keys = keys;
+        this.transitions = new ArrayList<WeakReference<MonkeyShape>>(0);
+    }
+    
+    public int size() {
+        return keys.length;
+    }
+    
+    public MonkeyObjectString keyAt(int slot) {
+        return keys[slot];
+    }
+    
+    public int slotOf(MonkeyObjectString key) {
+        for (int i=0; i<keys.length; i++) {
+            if (keys[i] == key) {
+                return i;
             }
         }
-        return ret;
+        for (int i=0; i<keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
     }
     
-    MonkeyObject evalBlockStatement(BlockStatement block, MonkeyEnvironment env) {
-        MonkeyObject ret = new MonkeyObject();
-        for (Statement s: block.getStatements()) {
-            ret = eval(s, env);
-            //
-            if (ret != null) {
-                String type = ret.getType();
-                if (type.equals(MonkeyObject.RETURN_VALUE_OBJ) || type.equals(MonkeyObject.ERROR_OBJ)) {
-                    return ret;
-                }
+    // The live child adding key, or null.
+    MonkeyShape child(List<WeakReference<MonkeyShape>> children, MonkeyObjectString key) {
+        for (int i=0; i<children.size(); i++) {
+            MonkeyShape c = children.get(i).get();
+            if (c != null && c.keys[keys.length] == key) {
+                return c;
             }
         }
-        return ret;
+        for (int i=0; i<children.size(); i++) {
+            MonkeyShape c = children.get(i).get();
+            if (c != null && c.keys[keys.length].equals(key)) {
+                return c;
+            }
+        }
+        return null;
     }
-
-    MonkeyObject getBoolean(boolean value) {
-        if (value) {
-            return TRUE;
+    
+    // The shape with key added last; key must not be in this shape.
+    public MonkeyShape transition(MonkeyObjectString key) {
+        MonkeyShape next = child(transitions, key);
+        if (next != null) {
+            return next;
+        } else if (keys.length == MAX_SLOTS) {
+            return null;
         }
         //
-        return FALSE;
+        synchronized (this) {
+            next = child(transitions, key);
+            if (next != null) {
+                return next;
+            }
+            List<WeakReference<MonkeyShape>> live = new ArrayList<WeakReference<MonkeyShape>>();
+            for (WeakReference<MonkeyShape> r: transitions) {
+                if (r.get() != null) {
+                    live.add(r);
+                }
+            }
+            if (live.size() >= MAX_TRANSITIONS) {
+                transitions = live;
+                return null;
+            }
+            MonkeyObjectString[] k = Arrays.copyOf(keys, keys.length + 1);
+            k[keys.length] = key;
+            next = new MonkeyShape(this, k);
+            live.add(new WeakReference<MonkeyShape>(next));
+            transitions = live;
+            return next;
+        }
     }
+}
 
-    MonkeyObject evalPrefixExpression(String operator, MonkeyObject right) {
-        if (operator.equals("!")) {
-            return evalBangOperatorExpression(right);
-        } else if (operator.equals("-")) {
-            return evalMinusPrefixOperatorExpression(right);
+// A cached lookup: key sits at slot in shape.
+class MonkeyShapeSlot {
+    final MonkeyShape shape;
+    final MonkeyObjectString key;
+    final int slot;
+
+    MonkeyShapeSlot(MonkeyShape shape, MonkeyObjectString key, int slot) {
+        this.shape = shape;
+        this.key = key;
+        this.slot = slot;
+    }
+}
+
+// Monomorphic inline cache of one index expression site, holding the
+// last shape and key seen there. Entries are immutable and replaced
+// whole, so threads sharing the site see either entry and at worst miss.
+class MonkeyIndexSite {
+    private MonkeyShapeSlot last;
+
+    // The value of key in hash, or null when hash has no shape or no
+    // such key.
+    public MonkeyObject get(MonkeyObjectHash hash, MonkeyObjectString key) {
+        MonkeyShape shape = hash.getShape();
+        if (shape == null) {
+            return null;
         }
-        return newError(String.format("unknown operator: %s%s", operator, right.getType()));
+        MonkeyShapeSlot c = last;
+        if (c == null || c.shape != shape || (c.key != key && !c.key.equals(key))) {
+            int slot = shape.slotOf(key);
+            if (slot < 0) {
+                return null;
+            }
+            c = new MonkeyShapeSlot(shape, key, slot);
+            last = c;
+        }
+        return hash.getSlot(c.slot);
     }
+}
 
-    MonkeyObject evalInfixExpression(String operator, MonkeyObject left, MonkeyObject right) {
-        if (left.getType().equals(MonkeyObject.INTEGER_OBJ) && 
-                right.getType().equals(MonkeyObject.INTEGER_OBJ)) {
-            return evalIntegerInfixExpression(operator, (MonkeyObjectInteger)left, 
-                    (MonkeyObjectInteger)right);
-        } else if (left.getType().equals(MonkeyObject.STRING_OBJ) &&
-                right.getType().equals(MonkeyObject.STRING_OBJ)) {
-            return evalStringInfixExpression(operator, (MonkeyObjectString)left, 
-                    (MonkeyObjectString)right);
-        } else if (operator.equals("==")) {
-            return getBoolean(left == right);
-        } else if (operator.equals("!=")) {
-            return getBoolean(left != right);
-        } else if (!left.getType().equals(right.getType())) {
-            return newError(String.format("type mismatch: %s %s %s", 
-                    left.getType(), operator, right.getType()));
+// Collects the pairs of a hash literal. String keys follow shape
+// transitions and fill a slot array; the first other key, or a shape
+// that cannot grow, moves the pairs to a compact table.
+class MonkeyHashBuilder {
+    private MonkeyShape shape;
+    private MonkeyObject[] slots;
+    private MonkeyHashTable table;
+
+    public MonkeyHashBuilder(int expected) {
+        this.shape = MonkeyShape.ROOT;
+        this.slots = new MonkeyObject[expected];
+    }
+    
+    public void put(MonkeyObject key, MonkeyObject value) {
+        if (key instanceof MonkeyObjectString) {
+            key = ((MonkeyObjectString) key).intern();
+        }
+        if (shape != null && key instanceof MonkeyObjectString) {
+            MonkeyObjectString s = (MonkeyObjectString) key;
+            int slot = shape.slotOf(s);
+            if (slot >= 0) {
+                slots[slot] = value;
+                return;
+            }
+            MonkeyShape next = shape.transition(s);
+            if (next != null) {
+                if (shape.size() == slots.length) {
+                    slots = Arrays.copyOf(slots, slots.length + 1);
+                }
+                slots[shape.size()] = value;
+                shape = next;
+                return;
+            }
+        }
+        if (shape != null) {
+            table = new MonkeyHashTable(slots.length);
+            for (int i=0; i<shape.size(); i++) {
+                table.put(shape.keyAt(i), slots[i]);
+            }
+            shape = null;
+            slots = null;
         }
-        return newError(String.format("unknown operator: %s %s %s", 
-                    left.getType(), operator, right.getType()));
+        table.put(key, value);
     }
     
-    MonkeyObject evalIntegerInfixExpression(String operator, 
-            MonkeyObjectInteger left, MonkeyObjectInteger right) {
-        BigDecimal leftVal = left.getValue();
-        BigDecimal rightVal = right.getValue();
-        //
-        MonkeyObjectInteger o = new MonkeyObjectInteger();
-        if (operator.equals("+")) {
-            try {
-                o.setValue(leftVal.add(rightVal));
-                return o;
-            } catch (Exception e) {
-                return NULL; 
+    public MonkeyObjectHash build() {
+        if (shape == null) {
+            return new MonkeyObjectHash(table);
+        } else if (slots.length != shape.size()) {
+            slots = Arrays.copyOf(slots, shape.size());
+        }
+        return new MonkeyObjectHash(shape, slots);
+    }
+}
+
+// Persistent hash: every update returns a new version and leaves the old
+// one intact. Records with string keys hold a shape and a value array;
+// adding string keys follows shape transitions, any other key or a
+// delete moves the pairs to a compact table. Hashes of up to COPY_LIMIT
+// entries live in the table, copied whole on update. Larger ones move to
+// a trie on their first update; versions after that share all untouched
+// trie nodes and update in O(log32 n). The trie maps each key to its
+// value and its position in order, a persistent vector of the keys as
+// they were added, with null left where a key was deleted. Every form
+// iterates in insertion order.
+class MonkeyObjectHash extends MonkeyObject {
+    static final int COPY_LIMIT = 32;
+    static final MonkeyObjectHash EMPTY = new MonkeyObjectHash(new MonkeyHashTable(0));
+    private final MonkeyShape shape;
+    private final MonkeyObject[] slots;
+    private final MonkeyHashTable table;
+    private final MonkeyHamtNode root;
+    private final MonkeyVector order;
+    private final int size;
+    private MonkeyObjectHash grown;
+
+    public MonkeyObjectHash(MonkeyHashTable table) {
+        this.shape = null;
+        this.slots = null;
+        this.table = table;
+        this.root = null;
+        this.order = null;
+        this.size = table.size();
+    }
+    
+    public MonkeyObjectHash(MonkeyShape shape, MonkeyObject[] slots) {
+        this.shape = shape;
+        this.slots = slots;
+        this.table = null;
+        this.root = null;
+        this.order = null;
+        this.size = slots.length;
+    }
+    
+    private MonkeyObjectHash(MonkeyHamtNode root, MonkeyVector order, int size) {
+        this.shape = null;
+        this.slots = null;
+        this.table = null;
+        this.root = root;
+        this.order = order;
+        this.size = size;
+    }
+    
+    // Null unless this hash is a shaped record.
+    public MonkeyShape getShape() {
+        return shape;
+    }
+    
+    public MonkeyObject getSlot(int slot) {
+        return slots[slot];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    // The value stored under key, or null.
+    public MonkeyObject get(MonkeyObject key) {
+        if (shape != null) {
+            if (!(key instanceof MonkeyObjectString)) {
+                return null;
             }
-        } else if (operator.equals("-")) {
-            try {
-                o.setValue(leftVal.subtract(rightVal));
-                return o;
-            } catch (Exception e) {
-                return NULL; 
+            int slot = shape.slotOf((MonkeyObjectString) key);
+            return slot < 0 ? null : slots[slot];
+        } else if (table != null) {
+            return table.get(key);
+        }
+        MonkeyHashEntry e = (MonkeyHashEntry) root.find(0, key.hashCode(), key);
+        return e == null ? null : e.value;
+    }
+    
+    // This hash in trie form. A table is converted once and the result
+    // kept; racing threads may each build it, but the copies are equal
+    // and their fields final, so either one may win.
+    private MonkeyObjectHash grow() {
+        if (root != null) {
+            return this;
+        }
+        MonkeyObjectHash g = grown;
+        if (g == null) {
+            g = rebuild(cursor());
+            grown = g;
+        }
+        return g;
+    }
+    
+    // A trie form hash of the entries c walks, numbered from zero.
+    private static MonkeyObjectHash rebuild(MonkeyHashCursor c) {
+        MonkeyHamtNode r = MonkeyHamtBitmapNode.EMPTY;
+        MonkeyVector o = MonkeyVector.EMPTY;
+        boolean[] added = new boolean[1];
+        while (c.next()) {
+            MonkeyObject k = c.getKey();
+            r = r.put(0, k.hashCode(), k, new MonkeyHashEntry(o.size(), c.getValue()), added);
+            o = o.push(k);
+        }
+        return new MonkeyObjectHash(r, o, o.size());
+    }
+    
+    private MonkeyHashTable toTable() {
+        MonkeyHashTable t = new MonkeyHashTable(size + 1);
+        for (int i=0; i<size; i++) {
+            t.put(shape.keyAt(i), slots[i]);
+        }
+        return t;
+    }
+    
+    // String keys are interned, so later lookups mostly hit by identity.
+    public MonkeyObjectHash put(MonkeyObject key, MonkeyObject value) {
+        if (key instanceof MonkeyObjectString) {
+            key = ((MonkeyObjectString) key).intern();
+        }
+        if (shape != null) {
+            if (key instanceof MonkeyObjectString) {
+                MonkeyObjectString s = (MonkeyObjectString) key;
+                int slot = shape.slotOf(s);
+                if (slot >= 0) {
+                    if (slots[slot] == value) {
+                        return this;
+                    }
+                    MonkeyObject[] copy = slots.clone();
+                    copy[slot] = value;
+                    return new MonkeyObjectHash(shape, copy);
+                }
+                MonkeyShape next = shape.transition(s);
+                if (next != null) {
+                    MonkeyObject[] copy = Arrays.copyOf(slots, size + 1);
+                    copy[size] = value;
+                    return new MonkeyObjectHash(next, copy);
+                }
             }
-        } else if (operator.equals("*")) {
-            try {
-                o.setValue(leftVal.multiply(rightVal));
-                return o;
-            } catch (Exception e) {
-                return NULL; 
+            return new MonkeyObjectHash(toTable()).put(key, value);
+        } else if (table != null && size < COPY_LIMIT) {
+            MonkeyHashTable t = table.with(key, value);
+            return t == table ? this : new MonkeyObjectHash(t);
+        }
+        MonkeyObjectHash h = grow();
+        int hash = key.hashCode();
+        MonkeyHashEntry e = (MonkeyHashEntry) h.root.find(0, hash, key);
+        boolean[] added = new boolean[1];
+        if (e != null) {
+            if (e.value == value) {
+                return this;
             }
-        } else if (operator.equals("/")) {
-            try {
-                o.setValue(leftVal.divide(rightVal, RoundingMode.DOWN));
-                return o;
-            } catch (Exception e) {
-                return NULL;
+            MonkeyHamtNode r = h.root.put(0, hash, key, new MonkeyHashEntry(e.index, value), added);
+            return new MonkeyObjectHash(r, h.order, size);
+        }
+        MonkeyHamtNode r = h.root.put(0, hash, key, new MonkeyHashEntry(h.order.size(), value), added);
+        return new MonkeyObjectHash(r, h.order.push(key), size + 1);
+    }
+    
+    public MonkeyObjectHash remove(MonkeyObject key) {
+        if (shape != null) {
+            if (get(key) == null) {
+                return this;
             }
-        } else if (operator.equals("<")) {
-            return getBoolean(leftVal.compareTo(rightVal) < 0);
-        } else if (operator.equals(">")) {
-            return getBoolean(leftVal.compareTo(rightVal) > 0);
-        } else if (operator.equals("==")) {
-            return getBoolean(leftVal.compareTo(rightVal) == 0);
-        } else if (operator.equals("!=")) {
-            return getBoolean(leftVal.compareTo(rightVal) != 0);
+            return new MonkeyObjectHash(toTable().without(key));
+        } else if (table != null && size <= COPY_LIMIT) {
+            MonkeyHashTable t = table.without(key);
+            return t == table ? this : new MonkeyObjectHash(t);
         }
-        return newError(String.format("unknown operator: %s %s %s", left.getType(),
-                operator, right.getType()));
+        MonkeyObjectHash h = grow();
+        int hash = key.hashCode();
+        MonkeyHashEntry e = (MonkeyHashEntry) h.root.find(0, hash, key);
+        if (e == null) {
+            return this;
+        } else if (size == 1) {
+            return EMPTY;
+        }
+        MonkeyObjectHash ret = new MonkeyObjectHash(h.root.remove(0, hash, key), 
+                h.order.with(e.index, null), size - 1);
+        // Renumber once the deleted keys outnumber the live ones, so order
+        // stays within twice the size.
+        if (ret.order.size() > 2 * ret.size) {
+            ret = rebuild(ret.cursor());
+        }
+        return ret;
+    }
+    
+    // The keys in insertion order, or null when the entries are held
+    // flat, in a shape or a table.
+    MonkeyVector getOrder() {
+        return order;
+    }
+    
+    // Entry i of a flat hash, in insertion order.
+    MonkeyObject keyAt(int i) {
+        return shape != null ? shape.keyAt(i) : table.keyAt(i);
+    }
+    
+    MonkeyObject valueAt(int i) {
+        return shape != null ? slots[i] : table.valueAt(i);
+    }
+    
+    // The entries in iteration order, the order inspect, keys and values
+    // share.
+    public MonkeyHashCursor cursor() {
+        return new MonkeyHashCursor(this);
+    }
+
+    @Override
+    public MonkeyObjectType getType() {
+        return HASH_OBJ;
+    }
+
+    @Override
+    public String inspect() {
+        return inspectToString();
+    }
+    
+    @Override
+    public void inspectTo(Appendable out) throws IOException {
+        out.append("{");
+        MonkeyHashCursor c = cursor();
+        boolean first = true;
+        while (c.next()) {
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            c.getKey().inspectTo(out);
+            out.append(": ");
+            c.getValue().inspectTo(out);
+        }
+        out.append("}");
+    }
+}
+
+// A trie value of a large hash: the value and the position of its key in
+// the hash's order vector.
+class MonkeyHashEntry {
+    final int index;
+    final MonkeyObject value;
+    
+    MonkeyHashEntry(int index, MonkeyObject value) {
+        this.index = index;
+        this.value = value;
+    }
+}
+
+// Walks the entries of a hash in insertion order without copying them.
+// A trie form hash is walked through its order vector, skipping the
+// deleted keys and looking each value up in the trie.
+class MonkeyHashCursor {
+    private final MonkeyObjectHash hash;
+    private final MonkeyVector order;
+    private int next;
+    private MonkeyObject key;
+    private MonkeyObject value;
+
+    MonkeyHashCursor(MonkeyObjectHash hash) {
+        this.hash = hash;
+        this.order = hash.getOrder();
+    }
+    
+    public boolean next() {
+        if (order == null) {
+            if (next == hash.size()) {
+                return false;
+            }
+            key = hash.keyAt(next);
+            value = hash.valueAt(next);
+            next++;
+            return true;
+        }
+        while (next < order.size()) {
+            MonkeyObject k = order.get(next);
+            next++;
+            if (k != null) {
+                key = k;
+                value = hash.get(k);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public MonkeyObject getKey() {
+        return key;
+    }
+    
+    public MonkeyObject getValue() {
+        return value;
+    }
+}
+
+// Scopes are chained through outer, so a call costs only its own bindings
+// and closures see every enclosing scope. Up to SMALL_SCOPE bindings live
+// in two parallel arrays searched linearly; larger scopes (usually the
+// global one) move to a HashMap.
+class MonkeyEnvironment {
+    static final int SMALL_SCOPE = 8;
+    private String[] names;
+    private MonkeyObject[] values;
+    private int size;
+    private Map<String, MonkeyObject> store;
+    private final MonkeyEnvironment outer;
+
+    public MonkeyEnvironment() {
+        this(null, SMALL_SCOPE);
+    }
+    
+    public MonkeyEnvironment(MonkeyEnvironment outer, int capacity) {
+        this.outer = outer;
+        capacity = Math.max(1, Math.min(capacity, SMALL_SCOPE));
+        names = new String[capacity];
+        values = new MonkeyObject[capacity];
+    }
+    
+    public MonkeyEnvironment getOuter() {
+        return outer;
+    }
+    
+    public MonkeyObject get(String name) {
+        MonkeyEnvironment e = this;
+        while (e != null) {
+            MonkeyObject obj = e.getLocal(name);
+            if (obj != null) {
+                return obj;
+            }
+            e = e.outer;
+        }
+        return null;
+    }
+    
+    public MonkeyObject getLocal(String name) {
+        if (store != null) {
+            return store.get(name);
+        }
+        for (int i=0; i<size; i++) {
+            if (name.equals(names[i])) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+    
+    public MonkeyObject set(String name, MonkeyObject value) {
+        if (store != null) {
+            store.put(name, value);
+            return value;
+        }
+        for (int i=0; i<size; i++) {
+            if (name.equals(names[i])) {
+                values[i] = value;
+                return value;
+            }
+        }
+        if (size == names.length && size < SMALL_SCOPE) {
+            int capacity = Math.min(size * 2, SMALL_SCOPE);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        if (size < names.length) {
+            names[size] = name;
+            values[size] = value;
+            size += 1;
+            return value;
+        }
+        //
+        store = new HashMap<String, MonkeyObject>();
+        for (int i=0; i<size; i++) {
+            store.put(names[i], values[i]);
+        }
+        store.put(name, value);
+        names = null;
+        values = null;
+        size = 0;
+        return value;
+    }
+    
+    public void debug() {
+        if (store != null) {
+            for (String k: store.keySet()) {
+                debug(k, store.get(k));
+            }
+            return;
+        }
+        for (int i=0; i<size; i++) {
+            debug(names[i], values[i]);
+        }
+    }
+    
+    private void debug(String k, MonkeyObject v) {
+        if (v != null) {
+            Compilador.output(String.format("%s: %s", k, v.inspect()));
+        }
+    }
+    
+    public static MonkeyEnvironment newInstance() {
+        MonkeyEnvironment e = new MonkeyEnvironment();
+        return e;
+    }
+    
+    public static MonkeyEnvironment newInstanceEnclosed(MonkeyEnvironment outer) {
+        MonkeyEnvironment e = new MonkeyEnvironment(outer, SMALL_SCOPE);
+        return e;
+    }
+    
+    // capacity is a hint, normally the number of parameters being bound.
+    public static MonkeyEnvironment newInstanceEnclosed(MonkeyEnvironment outer, int capacity) {
+        MonkeyEnvironment e = new MonkeyEnvironment(outer, capacity);
+        return e;
+    }
+}
+
+// Builtins are called through the fixed-arity entry points when the call
+// site has at most two arguments, so no argument list is built; callN
+// takes everything else.
+interface MonkeyBuiltinCallable {
+    MonkeyObject call0(MonkeyEvaluator evaluator);
+    MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a);
+    MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b);
+    MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args);
+}
+
+// Routes the fixed-arity entry points to callN; a builtin overrides the
+// ones matching its arity.
+abstract class MonkeyBuiltinFunction implements MonkeyBuiltinCallable {
+    public MonkeyObject call0(MonkeyEvaluator evaluator) {
+        return callN(evaluator, new ArrayList<MonkeyObject>());
+    }
+
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        List<MonkeyObject> args = new ArrayList<MonkeyObject>(1);
+        args.add(a);
+        return callN(evaluator, args);
+    }
+
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        List<MonkeyObject> args = new ArrayList<MonkeyObject>(2);
+        args.add(a);
+        args.add(b);
+        return callN(evaluator, args);
+    }
+
+    MonkeyObject wrongArguments(MonkeyEvaluator evaluator, int got, int want) {
+        return evaluator.newError("wrong number of arguments, got=%s, want=%s", got, want);
+    }
+    
+    // An error unless fn is a builtin or a function of arity parameters,
+    // the number of arguments builtin name calls it with; null when fn
+    // fits.
+    MonkeyObject checkFunction(MonkeyEvaluator evaluator, String name, MonkeyObject fn, 
+            int arity) {
+        if (fn.getType() != MonkeyObject.FUNCTION_OBJ && fn.getType() != MonkeyObject.BUILTIN_OBJ) {
+            return evaluator.newError("argument to \"%s\" must be FUNCTION, got %s", 
+                    name, fn.getType());
+        }
+        int n = parameters(fn);
+        if (n >= 0 && n != arity) {
+            return evaluator.newError("function of \"%s\" must take %s parameter%s, got %s", 
+                    name, arity, arity == 1 ? "" : "s", n);
+        }
+        return null;
+    }
+    
+    // Number of parameters of a user function, -1 for a builtin.
+    static int parameters(MonkeyObject fn) {
+        if (fn instanceof MonkeyObjectFunction) {
+            return ((MonkeyObjectFunction) fn).getParameters().size();
+        } else if (fn instanceof MonkeyObjectCompiledFunction) {
+            return ((MonkeyObjectCompiledFunction) fn).getParameters().length;
+        }
+        return -1;
+    }
+}
+
+class MonkeyBuiltinFunctionLen extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (a instanceof MonkeyObjectString) {
+            MonkeyObjectString s = (MonkeyObjectString) a;
+            MonkeyObjectInteger o = MonkeyObjectInteger.valueOf(s.length());
+            return o;
+        } else if (a instanceof MonkeyObjectArray) {
+            MonkeyObjectArray s = (MonkeyObjectArray) a;
+            MonkeyObjectInteger o = MonkeyObjectInteger.valueOf(s.size());
+            return o;
+        } else if (a instanceof MonkeyObjectBuffer) {
+            MonkeyObjectBuffer s = (MonkeyObjectBuffer) a;
+            return MonkeyObjectInteger.valueOf(s.size());
+        } else if (a instanceof MonkeyObjectSequence) {
+            return sequenceLength(evaluator, (MonkeyObjectSequence) a);
+        } else {
+            return evaluator.newError("argument to \"len\" not supported, got %s", 
+                    a.getType());
+        }
+    }
+    
+    // Sequences with a filter have to be run through to be counted.
+    MonkeyObject sequenceLength(MonkeyEvaluator evaluator, MonkeyObjectSequence s) {
+        long n = s.size();
+        if (n < 0) {
+            n = 0;
+            MonkeySequenceCursor c = s.cursor(evaluator);
+            MonkeyObject x = c.next();
+            while (x != null) {
+                if (x instanceof MonkeyObjectError) {
+                    return x;
+                }
+                n++;
+                x = c.next();
+            }
+        }
+        return MonkeyObjectInteger.valueOf(n);
+    }
+}
+
+class MonkeyBuiltinFunctionFirst extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (a instanceof MonkeyObjectSequence) {
+            MonkeyObject x = ((MonkeyObjectSequence) a).cursor(evaluator).next();
+            return x == null ? MonkeyEvaluator.NULL : x;
+        } else if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"first\" must be ARRAY, got %s", 
+                    a.getType());
+        };
+        MonkeyObjectArray s = (MonkeyObjectArray) a;
+        if (s.size() > 0) {
+            return s.get(0);
+        }
+        //
+        return MonkeyEvaluator.NULL;
+    }
+}
+
+class MonkeyBuiltinFunctionLast extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"last\" must be ARRAY, got %s", 
+                    a.getType());
+        };
+        MonkeyObjectArray s = (MonkeyObjectArray) a;
+        int length = s.size();
+        if (length > 0) {
+            return s.get(length - 1);
+        }
+        //
+        return MonkeyEvaluator.NULL;
+    }
+}
+
+class MonkeyBuiltinFunctionRest extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"rest\" must be ARRAY, got %s", 
+                    a.getType());
+        };
+        MonkeyObjectArray s = (MonkeyObjectArray) a;
+        if (s.size() > 0) {
+            MonkeyObjectArray o = s.rest();
+            //
+            return o;
+        }
+        //
+        return MonkeyEvaluator.NULL;
+    }
+}
+
+class MonkeyBuiltinFunctionPush extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"push\" must be ARRAY, got %s", 
+                    a.getType());
+        };
+        
+        MonkeyObjectArray s = (MonkeyObjectArray) a;
+        MonkeyObjectArray o = s.push(b);
+        //
+        return o;
+    }
+}
+
+class MonkeyBuiltinFunctionPuts extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        for (MonkeyObject a: args) {
+            Compilador.output(a, evaluator.getOutput());
+        }
+        //
+        return MonkeyEvaluator.NULL;        
+    }
+    
+    @Override
+    public MonkeyObject call0(MonkeyEvaluator evaluator) {
+        return MonkeyEvaluator.NULL;
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        Compilador.output(a, evaluator.getOutput());
+        return MonkeyEvaluator.NULL;
+    }
+}
+
+class MonkeyBuiltinFunctionBuffer extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (!(a instanceof MonkeyObjectInteger)) {
+            return evaluator.newError("argument to \"buffer\" must be INTEGER, got %s", 
+                    a.getType());
+        }
+        MonkeyObjectInteger size = (MonkeyObjectInteger) a;
+        if (size.isBig() || size.getLongValue() < 0 || size.getLongValue() > Integer.MAX_VALUE) {
+            return evaluator.newError("buffer size out of range: %s", size.inspect());
+        }
+        try {
+            return MonkeyObjectBuffer.allocate((int) size.getLongValue());
+        } catch (OutOfMemoryError e) {
+            return evaluator.newError("buffer of %s bytes: %s", size.inspect(), e.getMessage());
+        }
+    }
+}
+
+class MonkeyBuiltinFunctionSlice extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 3) {
+            return wrongArguments(evaluator, args.size(), 3);
+        }
+        MonkeyObject a = args.get(0);
+        if (!(a instanceof MonkeyObjectBuffer) && !(a instanceof MonkeyObjectString)) {
+            return evaluator.newError("argument to \"slice\" must be BUFFER or STRING, got %s", 
+                    a.getType());
+        }
+        if (!(args.get(1) instanceof MonkeyObjectInteger) 
+                || !(args.get(2) instanceof MonkeyObjectInteger)) {
+            return evaluator.newError("slice bounds must be INTEGER, got %s and %s", 
+                    args.get(1).getType(), args.get(2).getType());
+        }
+        MonkeyObjectInteger offset = (MonkeyObjectInteger) args.get(1);
+        MonkeyObjectInteger length = (MonkeyObjectInteger) args.get(2);
+        int size = a instanceof MonkeyObjectBuffer 
+                ? ((MonkeyObjectBuffer) a).size() : ((MonkeyObjectString) a).length();
+        if (offset.isBig() || length.isBig() || length.getLongValue() < 0 
+                || offset.getLongValue() < 0 || offset.getLongValue() > size
+                || length.getLongValue() > size - offset.getLongValue()) {
+            return evaluator.newError("slice out of range: offset %s, length %s, size %s", 
+                    offset.inspect(), length.inspect(), size);
+        }
+        int from = (int) offset.getLongValue();
+        int count = (int) length.getLongValue();
+        if (a instanceof MonkeyObjectString) {
+            return ((MonkeyObjectString) a).slice(from, from + count);
+        }
+        return ((MonkeyObjectBuffer) a).slice(from, count);
+    }
+}
+
+// readByte, readInt and readLong; bytes read as 0..255, wider values are
+// signed.
+class MonkeyBuiltinFunctionRead extends MonkeyBuiltinFunction {
+    private final String name;
+    private final int width;
+    
+    public MonkeyBuiltinFunctionRead(String name, int width) {
+        this.name = name;
+        this.width = width;
+    }
+    
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        if (!(a instanceof MonkeyObjectBuffer)) {
+            return evaluator.newError("argument to \"%s\" must be BUFFER, got %s", 
+                    name, a.getType());
+        }
+        if (!(b instanceof MonkeyObjectInteger)) {
+            return evaluator.newError("offset to \"%s\" must be INTEGER, got %s", 
+                    name, b.getType());
+        }
+        MonkeyObjectBuffer s = (MonkeyObjectBuffer) a;
+        MonkeyObjectInteger offset = (MonkeyObjectInteger) b;
+        if (offset.isBig() || !s.contains(offset.getLongValue(), width)) {
+            return evaluator.newError("offset out of range: %s", offset.inspect());
+        }
+        return MonkeyObjectInteger.valueOf(s.read((int) offset.getLongValue(), width));
+    }
+}
+
+// writeByte, writeInt and writeLong; the value is truncated to the width.
+class MonkeyBuiltinFunctionWrite extends MonkeyBuiltinFunction {
+    private final String name;
+    private final int width;
+    
+    public MonkeyBuiltinFunctionWrite(String name, int width) {
+        this.name = name;
+        this.width = width;
+    }
+    
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 3) {
+            return wrongArguments(evaluator, args.size(), 3);
+        }
+        MonkeyObject a = args.get(0);
+        if (!(a instanceof MonkeyObjectBuffer)) {
+            return evaluator.newError("argument to \"%s\" must be BUFFER, got %s", 
+                    name, a.getType());
+        }
+        if (!(args.get(1) instanceof MonkeyObjectInteger) 
+                || !(args.get(2) instanceof MonkeyObjectInteger)) {
+            return evaluator.newError("offset and value to \"%s\" must be INTEGER, got %s and %s", 
+                    name, args.get(1).getType(), args.get(2).getType());
+        }
+        MonkeyObjectBuffer s = (MonkeyObjectBuffer) a;
+        MonkeyObjectInteger offset = (MonkeyObjectInteger) args.get(1);
+        MonkeyObjectInteger value = (MonkeyObjectInteger) args.get(2);
+        if (s.isReadOnly()) {
+            return evaluator.newError("buffer is read-only");
+        }
+        if (offset.isBig() || !s.contains(offset.getLongValue(), width)) {
+            return evaluator.newError("offset out of range: %s", offset.inspect());
+        }
+        long v = value.isBig() ? value.getValue().longValue() : value.getLongValue();
+        s.write((int) offset.getLongValue(), width, v);
+        return MonkeyEvaluator.NULL;
+    }
+}
+
+class MonkeyBuiltinFunctionMmap extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (!(a instanceof MonkeyObjectString)) {
+            return evaluator.newError("argument to \"mmap\" must be STRING, got %s", 
+                    a.getType());
+        }
+        String path = ((MonkeyObjectString) a).getValue();
+        try {
+            return MonkeyObjectBuffer.map(new File(path));
+        } catch (Exception e) {
+            return evaluator.newError("mmap %s: %s", path, e);
+        }
+    }
+}
+
+// put(h, k, v), delete(h, k) and has(h, k); the first two return a new
+// hash and leave h unchanged.
+class MonkeyBuiltinFunctionPut extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 3) {
+            return wrongArguments(evaluator, args.size(), 3);
+        }
+        MonkeyObject a = args.get(0);
+        if (!(a instanceof MonkeyObjectHash)) {
+            return evaluator.newError("argument to \"put\" must be HASH, got %s", 
+                    a.getType());
+        }
+        if (!(args.get(1) instanceof MonkeyHashable)) {
+            return evaluator.newError("unusable as hash key: %s", args.get(1).getType());
+        }
+        return ((MonkeyObjectHash) a).put(args.get(1), args.get(2));
+    }
+}
+
+class MonkeyBuiltinFunctionDelete extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        if (!(a instanceof MonkeyObjectHash)) {
+            return evaluator.newError("argument to \"delete\" must be HASH, got %s", 
+                    a.getType());
+        }
+        if (!(b instanceof MonkeyHashable)) {
+            return evaluator.newError("unusable as hash key: %s", b.getType());
+        }
+        return ((MonkeyObjectHash) a).remove(b);
+    }
+}
+
+class MonkeyBuiltinFunctionHas extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        if (!(a instanceof MonkeyObjectHash)) {
+            return evaluator.newError("argument to \"has\" must be HASH, got %s", 
+                    a.getType());
+        }
+        if (!(b instanceof MonkeyHashable)) {
+            return evaluator.newError("unusable as hash key: %s", b.getType());
+        }
+        return evaluator.getBoolean(((MonkeyObjectHash) a).get(b) != null);
+    }
+}
+
+// keys(h) and values(h): arrays in the hash's iteration order.
+class MonkeyBuiltinFunctionEntries extends MonkeyBuiltinFunction {
+    private final String name;
+    private final boolean keys;
+    
+    public MonkeyBuiltinFunctionEntries(String name, boolean keys) {
+        this.name = name;
+        this.keys = keys;
+    }
+    
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (!(a instanceof MonkeyObjectHash)) {
+            return evaluator.newError("argument to \"%s\" must be HASH, got %s", 
+                    name, a.getType());
+        }
+        MonkeyObjectHash hash = (MonkeyObjectHash) a;
+        List<MonkeyObject> list = new ArrayList<MonkeyObject>(hash.size());
+        MonkeyHashCursor c = hash.cursor();
+        while (c.next()) {
+            list.add(keys ? c.getKey() : c.getValue());
+        }
+        return new MonkeyObjectArray(list);
+    }
+}
+
+// range(end), range(start, end) and range(start, end, step): the integers
+// from start up to but not including end, as a lazy sequence.
+class MonkeyBuiltinFunctionRange extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() < 1 || args.size() > 3) {
+            return evaluator.newError("wrong number of arguments, got=%s, want=1 to 3", 
+                    args.size());
+        }
+        long[] bounds = new long[] {0, 0, 1};
+        for (int i=0; i<args.size(); i++) {
+            MonkeyObject a = args.get(i);
+            if (!(a instanceof MonkeyObjectInteger) || ((MonkeyObjectInteger) a).isBig()) {
+                return evaluator.newError("argument to \"range\" must be INTEGER, got %s", 
+                        a.inspect());
+            }
+            bounds[args.size() == 1 ? 1 : i] = ((MonkeyObjectInteger) a).getLongValue();
+        }
+        long start = bounds[0];
+        long end = bounds[1];
+        long step = bounds[2];
+        if (step == 0) {
+            return evaluator.newError("range step must not be 0");
+        }
+        BigInteger span = BigInteger.valueOf(end).subtract(BigInteger.valueOf(start));
+        BigInteger count = BigInteger.ZERO;
+        if (span.signum() == Long.signum(step)) {
+            count = span.subtract(BigInteger.valueOf(Long.signum(step)))
+                    .divide(BigInteger.valueOf(step)).add(BigInteger.ONE);
+        }
+        if (count.bitLength() > 63) {
+            return evaluator.newError("range too long: %s elements", count);
+        }
+        return MonkeyObjectSequence.range(start, step, count.longValue());
+    }
+}
+
+// map(s, fn) and filter(s, fn) over an array or sequence: a lazy stage,
+// fn runs when the result is consumed.
+class MonkeyBuiltinFunctionStage extends MonkeyBuiltinFunction {
+    private final String name;
+    private final int kind;
+    
+    public MonkeyBuiltinFunctionStage(String name, int kind) {
+        this.name = name;
+        this.kind = kind;
+    }
+    
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        MonkeyObjectSequence s = MonkeyObjectSequence.of(a);
+        if (s == null) {
+            return evaluator.newError("argument to \"%s\" must be ARRAY or SEQUENCE, got %s", 
+                    name, a.getType());
+        }
+        MonkeyObject error = checkFunction(evaluator, name, b, 1);
+        if (error != null) {
+            return error;
+        } else if (kind == MonkeyObjectSequence.MAP) {
+            return MonkeyObjectSequence.map(s, b);
+        }
+        return MonkeyObjectSequence.filter(s, b);
+    }
+}
+
+class MonkeyBuiltinFunctionTake extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject b) {
+        MonkeyObjectSequence s = MonkeyObjectSequence.of(a);
+        if (s == null) {
+            return evaluator.newError("argument to \"take\" must be ARRAY or SEQUENCE, got %s", 
+                    a.getType());
+        } else if (!(b instanceof MonkeyObjectInteger) || ((MonkeyObjectInteger) b).isBig() 
+                || ((MonkeyObjectInteger) b).getLongValue() < 0) {
+            return evaluator.newError("count of \"take\" must be a non-negative INTEGER, got %s", 
+                    b.inspect());
+        }
+        return MonkeyObjectSequence.take(s, ((MonkeyObjectInteger) b).getLongValue());
+    }
+}
+
+// reduce(s, initial, fn): fn(accumulator, element) over an array or
+// sequence, in order.
+class MonkeyBuiltinFunctionReduce extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 3) {
+            return wrongArguments(evaluator, args.size(), 3);
+        }
+        MonkeyObjectSequence s = MonkeyObjectSequence.of(args.get(0));
+        if (s == null) {
+            return evaluator.newError("argument to \"reduce\" must be ARRAY or SEQUENCE, got %s", 
+                    args.get(0).getType());
+        }
+        MonkeyObject fn = args.get(2);
+        MonkeyObject error = checkFunction(evaluator, "reduce", fn, 2);
+        if (error != null) {
+            return error;
+        }
+        MonkeyObject acc = args.get(1);
+        MonkeySequenceCursor c = s.cursor(evaluator);
+        MonkeyObject x = c.next();
+        while (x != null) {
+            if (x instanceof MonkeyObjectError) {
+                return x;
+            }
+            acc = evaluator.apply2(fn, acc, x, false);
+            if (acc instanceof MonkeyObjectError) {
+                return acc;
+            }
+            x = c.next();
+        }
+        return acc;
+    }
+}
+
+class MonkeyBuiltinFunctionToArray extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (a instanceof MonkeyObjectArray) {
+            return a;
+        } else if (!(a instanceof MonkeyObjectSequence)) {
+            return evaluator.newError("argument to \"toArray\" must be ARRAY or SEQUENCE, got %s", 
+                    a.getType());
+        }
+        return ((MonkeyObjectSequence) a).toArray(evaluator);
+    }
+}
+
+// Fork/join work for pmap, pfilter and preduce over elements [from, to)
+// of an array. Ranges longer than grain are split in halves; a leaf runs
+// on an evaluator forked from the caller's, since frames and call
+// signals belong to one thread. Leaves write results at their elements'
+// indexes and halves are combined left to right, so the answer, and the
+// error when there is one, does not depend on scheduling. Steps taken by
+// finished leaves add up in spent, which every leaf checks against the
+// caller's step limit before each element.
+class MonkeyParallelTask extends RecursiveTask<MonkeyObject> {
+    private static final long serialVersionUID = 1L;
+    static final int MAP = 0;
+    static final int FILTER = 1;
+    static final int REDUCE = 2;
+    // Arrays shorter than this run sequentially on the calling evaluator,
+    // as does everything when the pool has a single thread.
+    static final int THRESHOLD = Integer.getInteger("monkey.parallel.threshold", 32768);
+    private final int kind;
+    private final MonkeyEvaluator evaluator;
+    private final MonkeyObject fn;
+    private final MonkeyObjectArray array;
+    private final MonkeyObject[] results;
+    private final int from;
+    private final int to;
+    private final int grain;
+    private final AtomicLong spent;
+
+    MonkeyParallelTask(int kind, MonkeyEvaluator evaluator, MonkeyObject fn, 
+            MonkeyObjectArray array, MonkeyObject[] results, int from, int to, int grain, 
+            AtomicLong spent) {
+        this.kind = kind;
+        this.evaluator = evaluator;
+        this.fn = fn;
+        this.array = array;
+        this.results = results;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+        this.spent = spent;
+    }
+    
+    // Runs kind over all of array. Map and filter leave their elements in
+    // results, null for those filtered out, and answer null or the first
+    // error; reduce answers the combination of all elements.
+    static MonkeyObject invoke(int kind, MonkeyEvaluator evaluator, MonkeyObject fn, 
+            MonkeyObjectArray array, MonkeyObject[] results) {
+        int n = array.size();
+        int threads = ForkJoinPool.getCommonPoolParallelism();
+        AtomicLong spent = new AtomicLong();
+        if (n < THRESHOLD || threads < 2) {
+            return new MonkeyParallelTask(kind, evaluator, fn, array, results, 0, n, n, spent)
+                    .leaf(evaluator);
+        }
+        int grain = Math.max(1, n / (threads * 8));
+        MonkeyObject ret = ForkJoinPool.commonPool().invoke(
+                new MonkeyParallelTask(kind, evaluator, fn, array, results, 0, n, grain, spent));
+        evaluator.addSteps(spent.get());
+        return ret;
+    }
+    
+    @Override
+    protected MonkeyObject compute() {
+        if (to - from <= grain) {
+            MonkeyEvaluator ev = evaluator.fork();
+            return charge(ev, leaf(ev));
+        }
+        int mid = (from + to) >>> 1;
+        MonkeyParallelTask right = new MonkeyParallelTask(kind, evaluator, fn, array, results, 
+                mid, to, grain, spent);
+        right.fork();
+        MonkeyObject l = new MonkeyParallelTask(kind, evaluator, fn, array, results, 
+                from, mid, grain, spent).compute();
+        MonkeyObject r = right.join();
+        if (l instanceof MonkeyObjectError) {
+            return l;
+        } else if (kind != REDUCE || r instanceof MonkeyObjectError) {
+            return r;
+        }
+        MonkeyEvaluator ev = evaluator.fork();
+        return charge(ev, ev.apply2(fn, l, r, false));
+    }
+    
+    // Adds the steps ev took since the fork to spent and answers value.
+    MonkeyObject charge(MonkeyEvaluator ev, MonkeyObject value) {
+        spent.addAndGet(ev.getSteps() - evaluator.getSteps());
+        return value;
+    }
+    
+    boolean exhausted(MonkeyEvaluator ev) {
+        return spent.get() + ev.getSteps() >= ev.getStepLimit();
+    }
+    
+    MonkeyObject leaf(MonkeyEvaluator ev) {
+        if (kind == REDUCE) {
+            MonkeyObject acc = array.get(from);
+            for (int i=from+1; i<to && !(acc instanceof MonkeyObjectError); i++) {
+                if (exhausted(ev)) {
+                    return ev.stepBudgetExceeded();
+                }
+                acc = ev.apply2(fn, acc, array.get(i), false);
+            }
+            return acc;
+        }
+        //
+        for (int i=from; i<to; i++) {
+            if (exhausted(ev)) {
+                return ev.stepBudgetExceeded();
+            }
+            MonkeyObject x = array.get(i);
+            MonkeyObject y = ev.apply1(fn, x, false);
+            if (y instanceof MonkeyObjectError) {
+                return y;
+            } else if (kind == MAP) {
+                results[i] = y;
+            } else if (ev.isTruthy(y)) {
+                results[i] = x;
+            }
+        }
+        return null;
+    }
+}
+
+// pmap(a, fn), pfilter(a, fn) and preduce(a, initial, fn): map, filter
+// and reduce with fn called on the common fork/join pool. Results keep
+// the order of a; preduce groups elements in any way, so fn must be
+// associative, and combines initial with the total once. A sequence
+// argument is first collected into an array on the calling thread.
+class MonkeyBuiltinFunctionParallel extends MonkeyBuiltinFunction {
+    private final String name;
+    private final int kind;
+    
+    public MonkeyBuiltinFunctionParallel(String name, int kind) {
+        this.name = name;
+        this.kind = kind;
+    }
+    
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        int want = kind == MonkeyParallelTask.REDUCE ? 3 : 2;
+        if (args.size() != want) {
+            return wrongArguments(evaluator, args.size(), want);
+        }
+        MonkeyObject a = args.get(0);
+        MonkeyObject fn = args.get(want - 1);
+        if (a instanceof MonkeyObjectSequence) {
+            a = ((MonkeyObjectSequence) a).toArray(evaluator);
+            if (a instanceof MonkeyObjectError) {
+                return a;
+            }
+        } else if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"%s\" must be ARRAY or SEQUENCE, got %s", 
+                    name, a.getType());
+        }
+        MonkeyObject error = checkFunction(evaluator, name, fn, want - 1);
+        if (error != null) {
+            return error;
+        }
+        MonkeyObjectArray array = (MonkeyObjectArray) a;
+        if (kind == MonkeyParallelTask.REDUCE) {
+            if (array.size() == 0) {
+                return args.get(1);
+            }
+            MonkeyObject total = MonkeyParallelTask.invoke(kind, evaluator, fn, array, null);
+            if (total instanceof MonkeyObjectError) {
+                return total;
+            }
+            return evaluator.apply2(fn, args.get(1), total, false);
+        }
+        //
+        MonkeyObject[] results = new MonkeyObject[array.size()];
+        error = MonkeyParallelTask.invoke(kind, evaluator, fn, array, results);
+        if (error != null) {
+            return error;
+        }
+        List<MonkeyObject> list = new ArrayList<MonkeyObject>(results.length);
+        for (int i=0; i<results.length; i++) {
+            if (results[i] != null) {
+                list.add(results[i]);
+            }
+        }
+        return new MonkeyObjectArray(list);
+    }
+}
+
+// Natural order of sortable values: integers by value, strings by
+// UTF-16 code units. Both sides must be of the same sortable type.
+class MonkeyValueComparator implements Comparator<MonkeyObject> {
+    static final MonkeyValueComparator INSTANCE = new MonkeyValueComparator();
+
+    static boolean sortable(MonkeyObject value) {
+        return value instanceof MonkeyObjectInteger || value instanceof MonkeyObjectString;
+    }
+    
+    public int compare(MonkeyObject a, MonkeyObject b) {
+        if (a instanceof MonkeyObjectString) {
+            String x = ((MonkeyObjectString) a).getValue();
+            return x.compareTo(((MonkeyObjectString) b).getValue());
+        }
+        MonkeyObjectInteger x = (MonkeyObjectInteger) a;
+        MonkeyObjectInteger y = (MonkeyObjectInteger) b;
+        if (!x.isBig() && !y.isBig()) {
+            return Long.compare(x.getLongValue(), y.getLongValue());
+        }
+        return x.getValue().compareTo(y.getValue());
+    }
+}
+
+// Orders element indexes by their precomputed keys.
+class MonkeyKeyComparator implements Comparator<Integer> {
+    private final MonkeyObject[] keys;
+
+    MonkeyKeyComparator(MonkeyObject[] keys) {
+        this.keys = keys;
+    }
+    
+    public int compare(Integer a, Integer b) {
+        return MonkeyValueComparator.INSTANCE.compare(keys[a.intValue()], keys[b.intValue()]);
+    }
+}
+
+// Orders elements by a user comparator fn(a, b) answering a negative,
+// zero or positive integer. The first error fn answers is kept and every
+// later comparison is 0, so the sort ends quickly; the caller reports
+// that error even when the zeros make the sort reject the comparator.
+class MonkeyFunctionComparator implements Comparator<MonkeyObject> {
+    private final MonkeyEvaluator evaluator;
+    private final MonkeyObject fn;
+    private MonkeyObject error;
+
+    MonkeyFunctionComparator(MonkeyEvaluator evaluator, MonkeyObject fn) {
+        this.evaluator = evaluator;
+        this.fn = fn;
+    }
+    
+    MonkeyObject getError() {
+        return error;
+    }
+    
+    public int compare(MonkeyObject a, MonkeyObject b) {
+        if (error != null) {
+            return 0;
+        }
+        MonkeyObject r = evaluator.apply2(fn, a, b, false);
+        if (r instanceof MonkeyObjectError) {
+            error = r;
+            return 0;
+        } else if (!(r instanceof MonkeyObjectInteger)) {
+            error = evaluator.newError("comparator of \"sortBy\" must return INTEGER, got %s", 
+                    r.getType());
+            return 0;
+        }
+        return ((MonkeyObjectInteger) r).getValue().signum();
+    }
+}
+
+// sort(a): the integers or the strings of a in ascending order. Arrays
+// held as longs are sorted as a long[]; arrays of at least
+// monkey.parallel.threshold elements use the parallel sorts.
+class MonkeyBuiltinFunctionSort extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 1) {
+            return wrongArguments(evaluator, args.size(), 1);
+        }
+        return call1(evaluator, args.get(0));
+    }
+    
+    @Override
+    public MonkeyObject call1(MonkeyEvaluator evaluator, MonkeyObject a) {
+        if (a instanceof MonkeyObjectSequence) {
+            a = ((MonkeyObjectSequence) a).toArray(evaluator);
+            if (a instanceof MonkeyObjectError) {
+                return a;
+            }
+        } else if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"sort\" must be ARRAY or SEQUENCE, got %s", 
+                    a.getType());
+        }
+        MonkeyObjectArray array = (MonkeyObjectArray) a;
+        int n = array.size();
+        boolean parallel = n >= MonkeyParallelTask.THRESHOLD;
+        if (array.isLongArray()) {
+            long[] values = new long[n];
+            for (int i=0; i<n; i++) {
+                values[i] = array.getLong(i);
+            }
+            if (parallel) {
+                Arrays.parallelSort(values);
+            } else {
+                Arrays.sort(values);
+            }
+            return MonkeyObjectArray.ofLongs(values);
+        }
+        //
+        MonkeyObject[] values = new MonkeyObject[n];
+        for (int i=0; i<n; i++) {
+            values[i] = array.get(i);
+            if (!MonkeyValueComparator.sortable(values[i]) 
+                    || values[i].getType() != values[0].getType()) {
+                return evaluator.newError(
+                        "elements of \"sort\" must be all INTEGER or all STRING, got %s", 
+                        values[i].getType());
+            }
+        }
+        if (parallel) {
+            Arrays.parallelSort(values, MonkeyValueComparator.INSTANCE);
+        } else {
+            Arrays.sort(values, MonkeyValueComparator.INSTANCE);
+        }
+        return new MonkeyObjectArray(Arrays.asList(values));
+    }
+}
+
+// sortBy(a, fn): a stably sorted by fn. A function of two parameters is
+// a comparator and runs on the calling evaluator; a function of one
+// parameter, or a builtin, is a key function, called once per element
+// like pmap and answering integers or strings, and the keys are then
+// sorted like sort's.
+class MonkeyBuiltinFunctionSortBy extends MonkeyBuiltinFunction {
+    public MonkeyObject callN(MonkeyEvaluator evaluator, List<MonkeyObject> args) {
+        if (args.size() != 2) {
+            return wrongArguments(evaluator, args.size(), 2);
+        }
+        return call2(evaluator, args.get(0), args.get(1));
+    }
+    
+    @Override
+    public MonkeyObject call2(MonkeyEvaluator evaluator, MonkeyObject a, MonkeyObject fn) {
+        if (a instanceof MonkeyObjectSequence) {
+            a = ((MonkeyObjectSequence) a).toArray(evaluator);
+            if (a instanceof MonkeyObjectError) {
+                return a;
+            }
+        } else if (!(a instanceof MonkeyObjectArray)) {
+            return evaluator.newError("argument to \"sortBy\" must be ARRAY or SEQUENCE, got %s", 
+                    a.getType());
+        }
+        if (fn.getType() != MonkeyObject.FUNCTION_OBJ && fn.getType() != MonkeyObject.BUILTIN_OBJ) {
+            return evaluator.newError("argument to \"sortBy\" must be FUNCTION, got %s", 
+                    fn.getType());
+        }
+        int arity = parameters(fn);
+        if (arity == 0 || arity > 2) {
+            return evaluator.newError("function of \"sortBy\" must take 1 or 2 parameters, got %s", 
+                    arity);
+        }
+        MonkeyObjectArray array = (MonkeyObjectArray) a;
+        int n = array.size();
+        if (arity == 2) {
+            MonkeyObject[] values = new MonkeyObject[n];
+            for (int i=0; i<n; i++) {
+                values[i] = array.get(i);
+            }
+            MonkeyFunctionComparator c = new MonkeyFunctionComparator(evaluator, fn);
+            try {
+                Arrays.sort(values, c);
+            } catch (IllegalArgumentException e) {
+                if (c.getError() != null) {
+                    return c.getError();
+                }
+                return evaluator.newError("comparator of \"sortBy\" is inconsistent");
+            }
+            if (c.getError() != null) {
+                return c.getError();
+            }
+            return new MonkeyObjectArray(Arrays.asList(values));
+        }
+        //
+        MonkeyObject[] keys = new MonkeyObject[n];
+        MonkeyObject error = MonkeyParallelTask.invoke(MonkeyParallelTask.MAP, evaluator, fn, 
+                array, keys);
+        if (error != null) {
+            return error;
+        }
+        Integer[] order = new Integer[n];
+        for (int i=0; i<n; i++) {
+            if (!MonkeyValueComparator.sortable(keys[i]) 
+                    || keys[i].getType() != keys[0].getType()) {
+                return evaluator.newError(
+                        "keys of \"sortBy\" must be all INTEGER or all STRING, got %s", 
+                        keys[i].getType());
+            }
+            order[i] = Integer.valueOf(i);
+        }
+        MonkeyKeyComparator c = new MonkeyKeyComparator(keys);
+        if (n >= MonkeyParallelTask.THRESHOLD) {
+            Arrays.parallelSort(order, c);
+        } else {
+            Arrays.sort(order, c);
+        }
+        List<MonkeyObject> list = new ArrayList<MonkeyObject>(n);
+        for (int i=0; i<n; i++) {
+            list.add(array.get(order[i].intValue()));
+        }
+        return new MonkeyObjectArray(list);
+    }
+}
+
+class MonkeyBuiltins {
+    public static final Map<String, MonkeyObjectBuiltin> BUILTINS;
+    static {
+        BUILTINS = new HashMap<String, MonkeyObjectBuiltin>();
+        BUILTINS.put("len", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionLen()));
+        BUILTINS.put("first", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionFirst()));
+        BUILTINS.put("last", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionLast()));
+        BUILTINS.put("rest", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionRest()));
+        BUILTINS.put("push", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionPush()));
+        BUILTINS.put("puts", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionPuts()));
+        BUILTINS.put("buffer", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionBuffer()));
+        BUILTINS.put("slice", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionSlice()));
+        BUILTINS.put("readByte", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionRead("readByte", 1)));
+        BUILTINS.put("readInt", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionRead("readInt", 4)));
+        BUILTINS.put("readLong", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionRead("readLong", 8)));
+        BUILTINS.put("writeByte", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionWrite("writeByte", 1)));
+        BUILTINS.put("writeInt", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionWrite("writeInt", 4)));
+        BUILTINS.put("writeLong", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionWrite("writeLong", 8)));
+        BUILTINS.put("mmap", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionMmap()));
+        BUILTINS.put("put", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionPut()));
+        BUILTINS.put("delete", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionDelete()));
+        BUILTINS.put("has", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionHas()));
+        BUILTINS.put("keys", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionEntries("keys", true)));
+        BUILTINS.put("values", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionEntries("values", false)));
+        BUILTINS.put("range", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionRange()));
+        BUILTINS.put("map", new MonkeyObjectBuiltin(
+                new MonkeyBuiltinFunctionStage("map", MonkeyObjectSequence.MAP)));
+        BUILTINS.put("filter", new MonkeyObjectBuiltin(
+                new MonkeyBuiltinFunctionStage("filter", MonkeyObjectSequence.FILTER)));
+        BUILTINS.put("take", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionTake()));
+        BUILTINS.put("reduce", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionReduce()));
+        BUILTINS.put("toArray", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionToArray()));
+        BUILTINS.put("pmap", new MonkeyObjectBuiltin(
+                new MonkeyBuiltinFunctionParallel("pmap", MonkeyParallelTask.MAP)));
+        BUILTINS.put("pfilter", new MonkeyObjectBuiltin(
+                new MonkeyBuiltinFunctionParallel("pfilter", MonkeyParallelTask.FILTER)));
+        BUILTINS.put("preduce", new MonkeyObjectBuiltin(
+                new MonkeyBuiltinFunctionParallel("preduce", MonkeyParallelTask.REDUCE)));
+        BUILTINS.put("sort", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionSort()));
+        BUILTINS.put("sortBy", new MonkeyObjectBuiltin(new MonkeyBuiltinFunctionSortBy()));
+    }
+    
+    public static MonkeyObjectBuiltin get(String name) {
+        return BUILTINS.get(name);
+    }
+}
+
+// One pending node of the explicit-stack evaluator. Frames live in a
+// growable array owned by the evaluator and are reused between pushes.
+class MonkeyFrame {
+    Node node;
+    MonkeyEnvironment env;
+    int state;
+    int index;
+    MonkeyObject left;
+    MonkeyObject first;
+    MonkeyObject second;
+    MonkeyEnvironment scope;
+    List<MonkeyObject> values;
+    Iterator<Expression> keys;
+    Expression key;
+    MonkeyHashBuilder pairs;
+
+    void clear() {
+        node = null;
+        env = null;
+        left = null;
+        first = null;
+        second = null;
+        scope = null;
+        values = null;
+        keys = null;
+        key = null;
+        pairs = null;
+    }
+}
+
+class MonkeyEvaluator {
+    public static MonkeyObjectNull NULL = new MonkeyObjectNull();
+    public static MonkeyObjectBoolean TRUE = new MonkeyObjectBoolean(true);
+    public static MonkeyObjectBoolean FALSE = new MonkeyObjectBoolean(false);
+    // Value of an empty program or block.
+    public static final MonkeyObject EMPTY = new MonkeyObject();
+    
+    // Bytes of heap assumed per frame when sizing the default frame budget.
+    public static final int FRAME_COST = 256;
+    private static final MonkeyObject SUSPENDED = new MonkeyObject();
+
+    private PrintStream output;
+    private MonkeyObjectTailCall tailCall;
+    private MonkeyObjectReturnValue returnSignal;
+    private boolean stackMode;
+    private MonkeyFrame[] frames;
+    private int sp;
+    private int maxFrames;
+    private int callDepth;
+    private long steps;
+    // steps allowed in all, counting nested runs started by builtins
+    private long stepLimit;
+    private int slice;
+    private int sliceBase;
+    private int sliceDepth;
+    private MonkeyObject sliceValue;
+
+    public MonkeyEvaluator() {
+        output = System.out;
+        tailCall = new MonkeyObjectTailCall();
+        returnSignal = new MonkeyObjectReturnValue();
+        stackMode = !"recursive".equals(System.getProperty("monkey.evaluator"));
+        frames = new MonkeyFrame[64];
+        sp = 0;
+        long budget = Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / FRAME_COST);
+        maxFrames = Integer.getInteger("monkey.frames", (int) budget);
+        callDepth = 0;
+        steps = 0;
+        stepLimit = Long.MAX_VALUE;
+        slice = Integer.MAX_VALUE;
+        sliceBase = -1;
+    }
+    
+    public MonkeyEvaluator(PrintStream output) {
+        this();
+        this.output = output;
+    }
+    
+    MonkeyObject eval(Node node, MonkeyEnvironment env) {
+        if (stackMode) {
+            return run(node, env);
+        }
+        //
+        int depth = callDepth;
+        try {
+            return evalNode(node, env);
+        } catch (StackOverflowError e) {
+            int reached = callDepth;
+            callDepth = depth;
+            return stackOverflow(reached);
+        }
+    }
+
+    MonkeyObject stackOverflow(int depth) {
+        return newError("stack overflow: Monkey call depth %s", depth);
+    }
+
+    // Explicit-stack evaluation: every pending node is a MonkeyFrame on the
+    // heap, so recursion depth is bounded by maxFrames rather than the Java
+    // thread stack. Each case mirrors the matching branch of evalNode.
+    MonkeyObject run(Node node, MonkeyEnvironment env) {
+        int base = sp;
+        return loop(base, callDepth, enter(node, env));
+    }
+
+    // Starts a run that resume() advances in slices of steps; only this
+    // outermost run suspends, nested runs started by builtins never do.
+    public void start(Node node, MonkeyEnvironment env) {
+        stackMode = true;
+        sliceBase = sp;
+        sliceDepth = callDepth;
+        sliceValue = enter(node, env);
+    }
+
+    // Runs until the program finishes (true) or, after at least the given
+    // number of steps, reaches a statement boundary or function call (false).
+    public boolean resume(int steps) {
+        slice = steps;
+        MonkeyObject value = loop(sliceBase, sliceDepth, sliceValue);
+        slice = Integer.MAX_VALUE;
+        if (value == SUSPENDED) {
+            return false;
+        }
+        sliceValue = value;
+        sliceBase = -1;
+        return true;
+    }
+
+    public MonkeyObject getResult() {
+        return sliceValue;
+    }
+
+    // Drops a suspended run, leaving result as its outcome.
+    public void abort(MonkeyObject result) {
+        if (sliceBase >= 0) {
+            while (sp > sliceBase) {
+                pop();
+            }
+            callDepth = sliceDepth;
+            sliceBase = -1;
+        }
+        sliceValue = result;
+    }
+
+    boolean suspend(int base) {
+        return slice <= 0 && base == sliceBase;
+    }
+
+    MonkeyObject loop(int base, int depth, MonkeyObject value) {
+        try {
+            while (sp > base) {
+                MonkeyFrame f = frames[sp - 1];
+                steps += 1;
+                slice -= 1;
+                switch (f.node.getKind()) {
+                case Node.PROGRAM_NODE: {
+                    List<Statement> statements = ((MonkeyProgram) f.node).getStatements();
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = EMPTY;
+                    } else if (value == returnSignal) {
+                        value = returnSignal.take();
+                        pop();
+                        break;
+                    } else if (value instanceof MonkeyObjectError) {
+                        pop();
+                        break;
+                    }
+                    if (f.index < statements.size()) {
+                        if (suspend(base)) {
+                            sliceValue = value;
+                            return SUSPENDED;
+                        }
+                        value = enter(statements.get(f.index++), f.env);
+                    } else {
+                        pop();
+                    }
+                    break;
+                }
+                case Node.BLOCK_STATEMENT_NODE: {
+                    List<Statement> statements = ((BlockStatement) f.node).getStatements();
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = EMPTY;
+                    } else if (isAbrupt(value)) {
+                        pop();
+                        break;
+                    }
+                    if (f.index < statements.size()) {
+                        if (suspend(base)) {
+                            sliceValue = value;
+                            return SUSPENDED;
+                        }
+                        value = enter(statements.get(f.index++), f.env);
+                    } else {
+                        pop();
+                    }
+                    break;
+                }
+                case Node.EXPRESSION_STATEMENT_NODE: {
+                    ExpressionStatement s = (ExpressionStatement) f.node;
+                    MonkeyEnvironment scope = f.env;
+                    pop();
+                    value = enter(s.getExpression(), scope);
+                    break;
+                }
+                case Node.PREFIX_EXPRESSION_NODE: {
+                    MonkeyPrefixExpression s = (MonkeyPrefixExpression) f.node;
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getRight(), f.env);
+                        break;
+                    }
+                    if (!isAbrupt(value)) {
+                        value = evalPrefixExpression(s.getOperator(), value);
+                    }
+                    pop();
+                    break;
+                }
+                case Node.INFIX_EXPRESSION_NODE: {
+                    MonkeyInfixExpression s = (MonkeyInfixExpression) f.node;
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getLeft(), f.env);
+                        break;
+                    }
+                    if (isAbrupt(value)) {
+                        pop();
+                        break;
+                    }
+                    if (f.state == 1) {
+                        f.state = 2;
+                        f.left = value;
+                        value = enter(s.getRight(), f.env);
+                        break;
+                    }
+                    value = evalInfixExpression(s.getOpcode(), s.getOperator(), f.left, value);
+                    pop();
+                    break;
+                }
+                case Node.IF_EXPRESSION_NODE: {
+                    MonkeyIfExpression s = (MonkeyIfExpression) f.node;
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getCondition(), f.env);
+                        break;
+                    }
+                    if (isAbrupt(value)) {
+                        pop();
+                        break;
+                    }
+                    MonkeyEnvironment scope = f.env;
+                    pop();
+                    if (isTruthy(value)) {
+                        value = enter(s.getConsequence(), scope);
+                    } else if (!s.getAlternative().isEmpty()) {
+                        value = enter(s.getAlternative(), scope);
+                    } else {
+                        value = NULL;
+                    }
+                    break;
+                }
+                case Node.RETURN_STATEMENT_NODE: {
+                    ReturnStatement s = (ReturnStatement) f.node;
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getReturnValue(), f.env);
+                        break;
+                    }
+                    if (!isAbrupt(value)) {
+                        returnSignal.setValue(value);
+                        value = returnSignal;
+                    }
+                    pop();
+                    break;
+                }
+                case Node.LET_STATEMENT_NODE: {
+                    LetStatement s = (LetStatement) f.node;
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getValue(), f.env);
+                        break;
+                    }
+                    if (!isAbrupt(value)) {
+                        f.env.set(s.getName().getValue(), value);
+                        value = null;
+                    }
+                    pop();
+                    break;
+                }
+                case Node.CALL_EXPRESSION_NODE: {
+                    MonkeyCallExpression s = (MonkeyCallExpression) f.node;
+                    List<Expression> arguments = s.getArguments();
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getFunction(), f.env);
+                        break;
+                    }
+                    if (f.state == 3) {
+                        // the function body finished
+                        value = unwrapReturnValue(value);
+                        if (value == tailCall && tailCall.getFunction() instanceof MonkeyObjectFunction) {
+                            MonkeyObjectFunction fn = (MonkeyObjectFunction) tailCall.getFunction();
+                            value = enter(fn.getBody(), tailCall.getScope());
+                            break;
+                        } else if (value == tailCall) {
+                            value = callFunction(tailCall.getFunction(), tailCall.getScope());
+                        }
+                        callDepth -= 1;
+                        pop();
+                        break;
+                    }
+                    if (f.state != 4) {
+                        if (isAbrupt(value)) {
+                            pop();
+                            break;
+                        }
+                        if (f.state == 1) {
+                            // arguments go straight into the callee scope, into
+                            // first/second for a short builtin call, or else
+                            // into a list
+                            f.state = 2;
+                            f.left = value;
+                            f.scope = callScope(value, arguments.size());
+                            if (f.scope == null && (!(value instanceof MonkeyObjectBuiltin) 
+                                    || arguments.size() > 2)) {
+                                f.values = new ArrayList<MonkeyObject>(arguments.size());
+                            }
+                        } else if (f.scope != null) {
+                            bindArgument(f.left, f.scope, f.index - 1, value);
+                        } else if (f.values != null) {
+                            f.values.add(value);
+                        } else if (f.index == 1) {
+                            f.first = value;
+                        } else {
+                            f.second = value;
+                        }
+                        if (f.index < arguments.size()) {
+                            value = enter(arguments.get(f.index++), f.env);
+                            break;
+                        }
+                        f.state = 4;
+                    }
+                    if (suspend(base)) {
+                        sliceValue = value;
+                        return SUSPENDED;
+                    }
+                    //
+                    if (f.scope != null && s.isTail()) {
+                        tailCall.set(f.left, f.scope);
+                        value = tailCall;
+                        pop();
+                    } else if (f.scope != null && f.left instanceof MonkeyObjectFunction) {
+                        MonkeyObjectFunction fn = (MonkeyObjectFunction) f.left;
+                        f.state = 3;
+                        callDepth += 1;
+                        value = enter(fn.getBody(), f.scope);
+                    } else if (f.scope != null) {
+                        value = callFunction(f.left, f.scope);
+                        pop();
+                    } else if (f.values == null) {
+                        value = callBuiltin((MonkeyObjectBuiltin) f.left, arguments.size(), 
+                                f.first, f.second);
+                        pop();
+                    } else if (s.isTail()) {
+                        value = applyTailCall(f.left, f.values);
+                        pop();
+                    } else {
+                        value = applyFunction(f.left, f.values);
+                        pop();
+                    }
+                    break;
+                }
+                case Node.ARRAY_LITERAL_NODE: {
+                    List<Expression> elements = ((MonkeyArrayLiteral) f.node).getElements();
+                    if (f.state == 0) {
+                        f.state = 1;
+                        f.values = new ArrayList<MonkeyObject>(elements.size());
+                    } else if (isAbrupt(value)) {
+                        pop();
+                        break;
+                    } else {
+                        f.values.add(value);
+                    }
+                    if (f.values.size() < elements.size()) {
+                        value = enter(elements.get(f.values.size()), f.env);
+                        break;
+                    }
+                    MonkeyObjectArray o = new MonkeyObjectArray(f.values);
+                    value = o;
+                    pop();
+                    break;
+                }
+                case Node.INDEX_EXPRESSION_NODE: {
+                    MonkeyIndexExpression s = (MonkeyIndexExpression) f.node;
+                    if (f.state == 0) {
+                        f.state = 1;
+                        value = enter(s.getLeft(), f.env);
+                        break;
+                    }
+                    if (isAbrupt(value)) {
+                        pop();
+                        break;
+                    }
+                    if (f.state == 1) {
+                        f.state = 2;
+                        f.left = value;
+                        value = enter(s.getIndex(), f.env);
+                        break;
+                    }
+                    value = evalIndexExpression(s.getSite(), f.left, value);
+                    pop();
+                    break;
+                }
+                case Node.HASH_LITERAL_NODE: {
+                    MonkeyHashLiteral s = (MonkeyHashLiteral) f.node;
+                    if (f.state == 0) {
+                        f.pairs = new MonkeyHashBuilder(s.getPairs().size());
+                        f.keys = s.getPairs().keySet().iterator();
+                    } else if (f.state == 1) {
+                        MonkeyObject key = checkHashKey(value);
+                        if (isAbrupt(key)) {
+                            value = key;
+                            pop();
+                            break;
+                        }
+                        f.state = 2;
+                        f.left = key;
+                        value = enter(s.getPairs().get(f.key), f.env);
+                        break;
+                    } else if (isAbrupt(value)) {
+                        pop();
+                        break;
+                    } else {
+                        f.pairs.put(f.left, value);
+                    }
+                    if (f.keys.hasNext()) {
+                        f.state = 1;
+                        f.key = f.keys.next();
+                        value = enter(f.key, f.env);
+                        break;
+                    }
+                    MonkeyObjectHash o = f.pairs.build();
+                    value = o;
+                    pop();
+                    break;
+                }
+                default:
+                    value = null;
+                    pop();
+                    break;
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            return unwind(base, depth, "out of memory");
+        } catch (StackOverflowError e) {
+            return unwind(base, depth, "stack overflow");
+        }
+        return value;
+    }
+
+    // Subtrees without calls can only recurse as deep as the AST itself, so
+    // they are evaluated in place; anything that may call gets a frame.
+    MonkeyObject enter(Node node, MonkeyEnvironment env) {
+        if (node == null) {
+            return null;
+        } else if (steps >= stepLimit) {
+            return stepBudgetExceeded();
+        }
+        if (isCallFree(node)) {
+            return evalNode(node, env);
+        }
+        //
+        if (sp >= maxFrames) {
+            return stackOverflow(callDepth);
+        }
+        if (sp == frames.length) {
+            frames = Arrays.copyOf(frames, (int) Math.min((long) frames.length * 2, maxFrames));
+        }
+        MonkeyFrame f = frames[sp];
+        if (f == null) {
+            f = new MonkeyFrame();
+            frames[sp] = f;
+        }
+        f.node = node;
+        f.env = env;
+        f.state = 0;
+        f.index = 0;
+        sp += 1;
+        return null;
+    }
+    
+    static boolean isCallFree(Node node) {
+        if (node == null) {
+            return true;
+        }
+        byte cached = node.getCallFree();
+        if (cached != 0) {
+            return cached > 0;
+        }
+        //
+        boolean ret = true;
+        switch (node.getKind()) {
+        case Node.PROGRAM_NODE:
+        case Node.CALL_EXPRESSION_NODE:
+            ret = false;
+            break;
+        case Node.EXPRESSION_STATEMENT_NODE:
+            ret = isCallFree(((ExpressionStatement) node).getExpression());
+            break;
+        case Node.PREFIX_EXPRESSION_NODE:
+            ret = isCallFree(((MonkeyPrefixExpression) node).getRight());
+            break;
+        case Node.INFIX_EXPRESSION_NODE: {
+            MonkeyInfixExpression s = (MonkeyInfixExpression) node;
+            ret = isCallFree(s.getLeft()) && isCallFree(s.getRight());
+            break;
+        }
+        case Node.BLOCK_STATEMENT_NODE:
+            for (Statement st: ((BlockStatement) node).getStatements()) {
+                ret = ret && isCallFree(st);
+            }
+            break;
+        case Node.IF_EXPRESSION_NODE: {
+            MonkeyIfExpression s = (MonkeyIfExpression) node;
+            ret = isCallFree(s.getCondition()) && isCallFree(s.getConsequence()) 
+                    && isCallFree(s.getAlternative());
+            break;
+        }
+        case Node.RETURN_STATEMENT_NODE:
+            ret = isCallFree(((ReturnStatement) node).getReturnValue());
+            break;
+        case Node.LET_STATEMENT_NODE:
+            ret = isCallFree(((LetStatement) node).getValue());
+            break;
+        case Node.ARRAY_LITERAL_NODE:
+            for (Expression e: ((MonkeyArrayLiteral) node).getElements()) {
+                ret = ret && isCallFree(e);
+            }
+            break;
+        case Node.INDEX_EXPRESSION_NODE: {
+            MonkeyIndexExpression s = (MonkeyIndexExpression) node;
+            ret = isCallFree(s.getLeft()) && isCallFree(s.getIndex());
+            break;
+        }
+        case Node.HASH_LITERAL_NODE:
+            for (Map.Entry<Expression, Expression> e: ((MonkeyHashLiteral) node).getPairs().entrySet()) {
+                ret = ret && isCallFree(e.getKey()) && isCallFree(e.getValue());
+            }
+            break;
+        default:
+            break;
+        }
+        node.setCallFree(ret ? (byte) 1 : (byte) -1);
+        return ret;
+    }
+
+    void pop() {
+        sp -= 1;
+        frames[sp].clear();
+    }
+
+    MonkeyObject unwind(int base, int depth, String reason) {
+        int reached = callDepth;
+        for (int i=base; i<frames.length; i++) {
+            frames[i] = null;
+        }
+        sp = base;
+        callDepth = depth;
+        return newError("%s: Monkey call depth %s", reason, reached);
+    }
+
+    MonkeyObject evalNode(Node node, MonkeyEnvironment env) {
+        if (node == null) {
+            return null;
+        }
+        //
+        switch (node.getKind()) {
+        case Node.PROGRAM_NODE: {
+            MonkeyProgram s = (MonkeyProgram) node;
+            return evalProgram(s, env);
+        }
+        case Node.EXPRESSION_STATEMENT_NODE: {
+            ExpressionStatement s = (ExpressionStatement) node;
+            return evalNode(s.getExpression(), env);
+        }
+        case Node.INTEGER_LITERAL_NODE: {
+            IntegerLiteral s = (IntegerLiteral) node;
+            MonkeyObjectInteger o = MonkeyObjectInteger.valueOf(s.getValue());
+            return o;
+        }
+        case Node.BOOLEAN_NODE: {
+            MonkeyBoolean s = (MonkeyBoolean) node;
+            return getBoolean(s.getValue());
+        }
+        case Node.PREFIX_EXPRESSION_NODE: {
+            MonkeyPrefixExpression s = (MonkeyPrefixExpression) node;
+            MonkeyObject right = evalNode(s.getRight(), env);
+            if (isAbrupt(right)) {
+                return right;
+            }
+            //
+            return evalPrefixExpression(s.getOperator(), right);
+        }
+        case Node.INFIX_EXPRESSION_NODE: {
+            MonkeyInfixExpression s = (MonkeyInfixExpression) node;
+            MonkeyObject left = evalNode(s.getLeft(), env);
+            if (isAbrupt(left)) {
+                return left;
+            }
+            //
+            MonkeyObject right = evalNode(s.getRight(), env);
+            if (isAbrupt(right)) {
+                return right;
+            }
+            //
+            return evalInfixExpression(s.getOpcode(), s.getOperator(), left, right);
+        }
+        case Node.BLOCK_STATEMENT_NODE: {
+            BlockStatement s = (BlockStatement) node;
+            return evalBlockStatement(s, env);
+        }
+        case Node.IF_EXPRESSION_NODE: {
+            MonkeyIfExpression s = (MonkeyIfExpression) node;
+            return evalIfExpression(s, env);
+        }
+        case Node.RETURN_STATEMENT_NODE: {
+            ReturnStatement s = (ReturnStatement) node;
+            MonkeyObject val = evalNode(s.getReturnValue(), env);
+            if (isAbrupt(val)) {
+                return val;
+            }
+            //
+            returnSignal.setValue(val);
+            return returnSignal;
+        }
+        case Node.LET_STATEMENT_NODE: {
+            LetStatement s = (LetStatement) node;
+            MonkeyObject val = evalNode(s.getValue(), env);
+            if (isAbrupt(val)) {
+                return val;
+            }
+            //
+            env.set(s.getName().getValue(), val);
+            return null;
+        }
+        case Node.IDENTIFIER_NODE: {
+            Identifier s = (Identifier) node;
+            return evalIdentifier(s, env);
+        }
+        case Node.FUNCTION_LITERAL_NODE: {
+            MonkeyFunctionLiteral s = (MonkeyFunctionLiteral) node;
+            List<Identifier> params = s.getParameters();
+            BlockStatement body = s.getBody();
+            //
+            return new MonkeyObjectFunction(params, body, env);
+        }
+        case Node.CALL_EXPRESSION_NODE: {
+            MonkeyCallExpression s = (MonkeyCallExpression) node;
+            MonkeyObject function = evalNode(s.getFunction(), env);
+            if (isAbrupt(function)) {
+                return function;
+            }
+            //
+            List<Expression> arguments = s.getArguments();
+            MonkeyEnvironment scope = callScope(function, arguments.size());
+            if (scope != null) {
+                for (int i=0; i<arguments.size(); i++) {
+                    MonkeyObject val = evalNode(arguments.get(i), env);
+                    if (isAbrupt(val)) {
+                        return val;
+                    }
+                    bindArgument(function, scope, i, val);
+                }
+                return callScoped(function, scope, s.isTail());
+            }
+            if (function instanceof MonkeyObjectBuiltin && arguments.size() <= 2) {
+                MonkeyObject first = null;
+                MonkeyObject second = null;
+                if (arguments.size() > 0) {
+                    first = evalNode(arguments.get(0), env);
+                    if (isAbrupt(first)) {
+                        return first;
+                    }
+                }
+                if (arguments.size() > 1) {
+                    second = evalNode(arguments.get(1), env);
+                    if (isAbrupt(second)) {
+                        return second;
+                    }
+                }
+                return callBuiltin((MonkeyObjectBuiltin) function, arguments.size(), first, second);
+            }
+            //
+            List<MonkeyObject> args = evalExpressions(arguments, env);
+            if (args.size() == 1 && isAbrupt(args.get(0))) {
+                return args.get(0);
+            }
+            //
+            if (s.isTail()) {
+                return applyTailCall(function, args);
+            }
+            //
+            return applyFunction(function, args);
+        }
+        case Node.STRING_LITERAL_NODE: {
+            MonkeyStringLiteral s = (MonkeyStringLiteral) node;
+            return s.getObject();
+        }
+        case Node.ARRAY_LITERAL_NODE: {
+            MonkeyArrayLiteral s = (MonkeyArrayLiteral) node;
+            List<MonkeyObject> elements = evalExpressions(s.getElements(), env);
+            if (elements.size() == 1 && isAbrupt(elements.get(0))) {
+                return elements.get(0);
+            }
+            //
+            MonkeyObjectArray o = new MonkeyObjectArray(elements);
+            return o;
+        }
+        case Node.INDEX_EXPRESSION_NODE: {
+            MonkeyIndexExpression s = (MonkeyIndexExpression) node;
+            MonkeyObject left = evalNode(s.getLeft(), env);
+            if (isAbrupt(left)) {
+                return left;
+            }
+            //
+            MonkeyObject index = evalNode(s.getIndex(), env);
+            if (isAbrupt(index)) {
+                return index;
+            }
+            //
+            return evalIndexExpression(s.getSite(), left, index);
+        }
+        case Node.HASH_LITERAL_NODE: {
+            MonkeyHashLiteral s = (MonkeyHashLiteral) node;
+            return evalHashLiteral(s, env);
+        }
+        default:
+            return null;
+        }
+    }
+
+    MonkeyObject evalProgram(MonkeyProgram program, MonkeyEnvironment env) {
+        MonkeyObject ret = EMPTY;
+        for (Statement s: program.getStatements()) {
+            ret = evalNode(s, env);
+            //
+            if (ret == returnSignal) {
+                return returnSignal.take();
+            } else if (ret instanceof MonkeyObjectError) {
+                MonkeyObjectError o = (MonkeyObjectError) ret;
+                return o;
+            }
+        }
+        return ret;
+    }
+    
+    MonkeyObject evalBlockStatement(BlockStatement block, MonkeyEnvironment env) {
+        MonkeyObject ret = EMPTY;
+        for (Statement s: block.getStatements()) {
+            ret = evalNode(s, env);
+            //
+            if (isAbrupt(ret)) {
+                return ret;
+            }
+        }
+        return ret;
+    }
+
+    MonkeyObject getBoolean(boolean value) {
+        if (value) {
+            return TRUE;
+        }
+        //
+        return FALSE;
+    }
+
+    MonkeyObject evalPrefixExpression(String operator, MonkeyObject right) {
+        if (operator.equals("!")) {
+            return evalBangOperatorExpression(right);
+        } else if (operator.equals("-")) {
+            return evalMinusPrefixOperatorExpression(right);
+        }
+        return newError("unknown operator: %s%s", operator, right.getType());
+    }
+
+    // opcode is the operator's MonkeyInfixExpression opcode, resolved when
+    // it was parsed or compiled; operator is kept for strings and errors.
+    public MonkeyObject evalInfixExpression(int opcode, String operator, MonkeyObject left, 
+            MonkeyObject right) {
+        if (left instanceof MonkeyObjectInteger && right instanceof MonkeyObjectInteger) {
+            return evalIntegerInfixExpression(opcode, operator, (MonkeyObjectInteger)left, 
+                    (MonkeyObjectInteger)right);
+        } else if (left.getType() == MonkeyObject.STRING_OBJ &&
+                right.getType() == MonkeyObject.STRING_OBJ) {
+            return evalStringInfixExpression(operator, (MonkeyObjectString)left, 
+                    (MonkeyObjectString)right);
+        } else if (operator.equals("==")) {
+            return getBoolean(left == right);
+        } else if (operator.equals("!=")) {
+            return getBoolean(left != right);
+        } else if (left.getType() != right.getType()) {
+            return newError("type mismatch: %s %s %s", 
+                    left.getType(), operator, right.getType());
+        }
+        return newError("unknown operator: %s %s %s", 
+                    left.getType(), operator, right.getType());
+    }
+    
+    MonkeyObject evalIntegerInfixExpression(int opcode, String operator, 
+            MonkeyObjectInteger left, MonkeyObjectInteger right) {
+        if (!left.isBig() && !right.isBig()) {
+            long leftVal = left.getLongValue();
+            long rightVal = right.getLongValue();
+            try {
+                switch (opcode) {
+                case MonkeyInfixExpression.ADD_OP:
+                    return MonkeyObjectInteger.valueOf(Math.addExact(leftVal, rightVal));
+                case MonkeyInfixExpression.SUB_OP:
+                    return MonkeyObjectInteger.valueOf(Math.subtractExact(leftVal, rightVal));
+                case MonkeyInfixExpression.MUL_OP:
+                    return MonkeyObjectInteger.valueOf(Math.multiplyExact(leftVal, rightVal));
+                case MonkeyInfixExpression.DIV_OP:
+                    if (rightVal == 0) {
+                        return NULL;
+                    }
+                    if (leftVal != Long.MIN_VALUE || rightVal != -1) {
+                        return MonkeyObjectInteger.valueOf(leftVal / rightVal);
+                    }
+                    break;
+                case MonkeyInfixExpression.LT_OP:
+                    return getBoolean(leftVal < rightVal);
+                case MonkeyInfixExpression.GT_OP:
+                    return getBoolean(leftVal > rightVal);
+                case MonkeyInfixExpression.EQ_OP:
+                    return getBoolean(leftVal == rightVal);
+                case MonkeyInfixExpression.NOT_EQ_OP:
+                    return getBoolean(leftVal != rightVal);
+                default:
+                    return newError("unknown operator: %s %s %s", left.getType(),
+                            operator, right.getType());
+                }
+            } catch (ArithmeticException e) {
+                // overflowed the long range, redo it with BigInteger below
+            }
+        }
+        //
+        BigInteger leftVal = left.getValue();
+        BigInteger rightVal = right.getValue();
+        switch (opcode) {
+        case MonkeyInfixExpression.ADD_OP:
+            return MonkeyObjectInteger.valueOf(leftVal.add(rightVal));
+        case MonkeyInfixExpression.SUB_OP:
+            return MonkeyObjectInteger.valueOf(leftVal.subtract(rightVal));
+        case MonkeyInfixExpression.MUL_OP:
+            return MonkeyObjectInteger.valueOf(leftVal.multiply(rightVal));
+        case MonkeyInfixExpression.DIV_OP:
+            if (rightVal.signum() == 0) {
+                return NULL;
+            }
+            return MonkeyObjectInteger.valueOf(leftVal.divide(rightVal));
+        case MonkeyInfixExpression.LT_OP:
+            return getBoolean(leftVal.compareTo(rightVal) < 0);
+        case MonkeyInfixExpression.GT_OP:
+            return getBoolean(leftVal.compareTo(rightVal) > 0);
+        case MonkeyInfixExpression.EQ_OP:
+            return getBoolean(leftVal.compareTo(rightVal) == 0);
+        case MonkeyInfixExpression.NOT_EQ_OP:
+            return getBoolean(leftVal.compareTo(rightVal) != 0);
+        default:
+            break;
+        }
+        return newError("unknown operator: %s %s %s", left.getType(),
+                operator, right.getType());
+    }
+
+    MonkeyObject evalStringInfixExpression(String operator, 
+            MonkeyObjectString left, MonkeyObjectString right) {
+        if (operator.equals("==")) {
+            return getBoolean(left.equals(right));
+        } else if (operator.equals("!=")) {
+            return getBoolean(!left.equals(right));
+        } else if (!operator.equals("+")) {
+            return newError("unknown operator: %s %s %s", 
+                    left.getType(), operator, right.getType());
+        }
+        //
+        return left.concat(right);
+    }
+    
+    MonkeyObject evalBangOperatorExpression(MonkeyObject right) {
+        if (right == TRUE) {
+            return FALSE;
+        } else if (right == FALSE) {
+            return TRUE;
+        } else if (right == NULL) {
+            return TRUE;
+        }
+        return FALSE;
+    }
+
+    MonkeyObject evalMinusPrefixOperatorExpression(MonkeyObject right) {
+        if (right.getType() != MonkeyObject.INTEGER_OBJ) {
+            return newError("unknown operator: -%s", right.getType());
+        }
+        //
+        MonkeyObjectInteger val = (MonkeyObjectInteger) right;
+        if (!val.isBig() && val.getLongValue() != Long.MIN_VALUE) {
+            return MonkeyObjectInteger.valueOf(-val.getLongValue());
+        }
+        return MonkeyObjectInteger.valueOf(val.getValue().negate());
+    }
+
+    MonkeyObject evalIfExpression(MonkeyIfExpression expression, MonkeyEnvironment env) {
+        MonkeyObject condition = evalNode(expression.getCondition(), env);
+        if (isAbrupt(condition)) {
+            return condition;
+        }
+        //
+        if (isTruthy(condition)) {
+            return evalNode(expression.getConsequence(), env);
+        } else if (!expression.getAlternative().isEmpty()) {
+            return evalNode(expression.getAlternative(), env);
+        } else {
+            return NULL;
+        }
+    }
+    
+    MonkeyObject evalIdentifier(Identifier ident, MonkeyEnvironment env) {
+        return evalIdentifier(ident.getValue(), env);
+    }
+
+    MonkeyObject evalIdentifier(String name, MonkeyEnvironment env) {
+        MonkeyObject val = env.get(name);
+        if (val != null) {
+            return val;
+        }
+        //
+        MonkeyObjectBuiltin builtin = MonkeyBuiltins.get(name);
+        if (builtin != null) {
+            return builtin;
+        }
+        //
+        return newError("identifier not found: %s", name);
+    }
+    
+    List<MonkeyObject> evalExpressions(List<Expression> exp, MonkeyEnvironment env) {
+        List<MonkeyObject> result = new ArrayList<MonkeyObject>();
+        //
+        for (Expression e: exp) {
+            MonkeyObject evaluated = evalNode(e, env);
+            if (isAbrupt(evaluated)) {
+                result.add(evaluated);
+                return result;
+            }
+            result.add(evaluated);
+        }
+        //
+        return result;
+    }
+    
+    // h["name"] on a shaped record is answered by the site's inline
+    // cache; everything else takes the generic path.
+    public MonkeyObject evalIndexExpression(MonkeyIndexSite site, MonkeyObject left, 
+            MonkeyObject index) {
+        if (left instanceof MonkeyObjectHash && index instanceof MonkeyObjectString) {
+            MonkeyObject value = site.get((MonkeyObjectHash) left, (MonkeyObjectString) index);
+            if (value != null) {
+                return value;
+            }
+        }
+        return evalIndexExpression(left, index);
+    }
+    
+    MonkeyObject evalIndexExpression(MonkeyObject left, MonkeyObject index) {
+        if (left.getType() == MonkeyObject.ARRAY_OBJ &&
+                index.getType() == MonkeyObject.INTEGER_OBJ) {
+            return evalArrayIndexExpression((MonkeyObjectArray)left, 
+                    (MonkeyObjectInteger)index);
+        } else if (left.getType() == MonkeyObject.HASH_OBJ) {
+            return evalHashIndexExpression((MonkeyObjectHash)left, index);
+        } else if (left.getType() == MonkeyObject.BUFFER_OBJ &&
+                index.getType() == MonkeyObject.INTEGER_OBJ) {
+            return evalBufferIndexExpression((MonkeyObjectBuffer)left, 
+                    (MonkeyObjectInteger)index);
+        } else if (left.getType() == MonkeyObject.SEQUENCE_OBJ &&
+                index.getType() == MonkeyObject.INTEGER_OBJ) {
+            return evalSequenceIndexExpression((MonkeyObjectSequence)left, 
+                    (MonkeyObjectInteger)index);
+        }
+        return newError("index operator not supported: %s", 
+                left.getType());
+    }
+    
+    MonkeyObject evalSequenceIndexExpression(MonkeyObjectSequence sequence, 
+            MonkeyObjectInteger index) {
+        if (index.isBig() || index.getLongValue() < 0) {
+            return NULL;
+        }
+        //
+        MonkeyObject value = sequence.get(this, index.getLongValue());
+        if (value == null) {
+            return NULL;
+        }
+        //
+        return value;
+    }
+    
+    // buffer[i] reads byte i as 0..255, null outside the buffer like arrays.
+    MonkeyObject evalBufferIndexExpression(MonkeyObjectBuffer buffer, 
+            MonkeyObjectInteger index) {
+        if (index.isBig() || !buffer.contains(index.getLongValue(), 1)) {
+            return NULL;
+        }
+        //
+        return MonkeyObjectInteger.valueOf(buffer.read((int) index.getLongValue(), 1));
+    }
+    
+    MonkeyObject evalArrayIndexExpression(MonkeyObjectArray array, 
+            MonkeyObjectInteger index) {
+        long idx = index.getLongValue();
+        int max = array.size() - 1;
+        //
+        if (index.isBig() || idx < 0 || idx > max) {
+            return NULL;
+        }
+        //
+        return array.get((int) idx);
+    }
+    
+    MonkeyObject evalHashLiteral(MonkeyHashLiteral node, MonkeyEnvironment env) {
+        MonkeyHashBuilder pairs = new MonkeyHashBuilder(node.getPairs().size());
+        //
+        for (Expression k: node.getPairs().keySet()) {
+            MonkeyObject key = checkHashKey(evalNode(k, env));
+            if (isAbrupt(key)) {
+                return key;
+            }
+            //
+            Expression v = node.getPairs().get(k);
+            MonkeyObject val = evalNode(v, env);
+            if (isAbrupt(val)) {
+                return val;
+            }
+            //
+            pairs.put(key, val);
+        }
+        //
+        MonkeyObjectHash o = pairs.build();
+        return o;
+    }
+
+    MonkeyObject checkHashKey(MonkeyObject key) {
+        if (isAbrupt(key)) {
+            return key;
+        }
+        //
+        if (!(key instanceof MonkeyHashable)) {
+            return newError("unusable as hash key: %s", 
+                    key.getType());
+        }
+        //
+        return key;
+    }
+
+    MonkeyObject evalHashIndexExpression(MonkeyObjectHash hashtable, MonkeyObject index) {
+        if (!(index instanceof MonkeyHashable)) {
+            return newError("unusable as hash key: %s", index.getType());
+        }
+        //
+        MonkeyObject value = hashtable.get(index);
+        if (value == null) {
+            return NULL;
+        }
+        //
+        return value;
+    }
+    
+    MonkeyObject applyFunction(MonkeyObject fn, List<MonkeyObject> args) {
+        if (fn instanceof MonkeyObjectFunction || fn instanceof MonkeyObjectCompiledFunction) {
+            return callFunction(fn, extendFunctionEnv(fn, args));
+        }
+        //
+        if (fn instanceof MonkeyObjectBuiltin) {
+            MonkeyObjectBuiltin f = (MonkeyObjectBuiltin)fn;
+            MonkeyBuiltinCallable c = f.getFn();
+            return c.callN(this, args);
+        }
+        //
+        return newError("not a function: %s", fn.getType());
+    }
+
+    // Runs a user or compiled function in a scope that already holds its
+    // arguments. A body ending in a tail call hands back the next function
+    // and scope, and the loop runs it instead of recursing.
+    // Each call is a step, so bodies evaluated without frames still count
+    // toward the step limit.
+    MonkeyObject callFunction(MonkeyObject fn, MonkeyEnvironment scope) {
+        while (true) {
+            MonkeyObject evaluated;
+            steps += 1;
+            if (steps >= stepLimit) {
+                return stepBudgetExceeded();
+            }
+            callDepth += 1;
+            if (fn instanceof MonkeyObjectFunction) {
+                MonkeyObjectFunction f = (MonkeyObjectFunction)fn;
+                if (stackMode) {
+                    evaluated = unwrapReturnValue(run(f.getBody(), scope));
+                } else {
+                    evaluated = unwrapReturnValue(evalNode(f.getBody(), scope));
+                }
+            } else {
+                MonkeyObjectCompiledFunction f = (MonkeyObjectCompiledFunction)fn;
+                evaluated = f.getBody().run(this, scope);
+            }
+            callDepth -= 1;
+            //
+            if (evaluated != tailCall) {
+                return evaluated;
+            }
+            fn = tailCall.getFunction();
+            scope = tailCall.getScope();
+        }
+    }
+
+    // Calls in tail position hand user functions back to the enclosing
+    // callFunction loop; builtins have no body to loop over and run directly.
+    MonkeyObject applyTailCall(MonkeyObject fn, List<MonkeyObject> args) {
+        if (fn instanceof MonkeyObjectFunction || fn instanceof MonkeyObjectCompiledFunction) {
+            tailCall.set(fn, extendFunctionEnv(fn, args));
+            return tailCall;
+        }
+        //
+        return applyFunction(fn, args);
+    }
+
+    MonkeyObject callScoped(MonkeyObject fn, MonkeyEnvironment scope, boolean tail) {
+        if (tail) {
+            tailCall.set(fn, scope);
+            return tailCall;
+        }
+        //
+        return callFunction(fn, scope);
+    }
+
+    MonkeyObject callBuiltin(MonkeyObjectBuiltin fn, int count, MonkeyObject first,
+            MonkeyObject second) {
+        switch (count) {
+        case 0:
+            return fn.getFn().call0(this);
+        case 1:
+            return fn.getFn().call1(this, first);
+        default:
+            return fn.getFn().call2(this, first, second);
+        }
+    }
+
+    // Fixed-arity calls used by compiled code: arguments are bound straight
+    // into the callee scope or passed to the builtin entry point, and only
+    // the remaining cases build an argument list.
+    public MonkeyObject apply0(MonkeyObject fn, boolean tail) {
+        MonkeyEnvironment scope = callScope(fn, 0);
+        if (scope != null) {
+            return callScoped(fn, scope, tail);
+        } else if (fn instanceof MonkeyObjectBuiltin) {
+            return callBuiltin((MonkeyObjectBuiltin) fn, 0, null, null);
+        }
+        //
+        return applyFunction(fn, new ArrayList<MonkeyObject>());
+    }
+
+    public MonkeyObject apply1(MonkeyObject fn, MonkeyObject first, boolean tail) {
+        MonkeyEnvironment scope = callScope(fn, 1);
+        if (scope != null) {
+            bindArgument(fn, scope, 0, first);
+            return callScoped(fn, scope, tail);
+        } else if (fn instanceof MonkeyObjectBuiltin) {
+            return callBuiltin((MonkeyObjectBuiltin) fn, 1, first, null);
+        }
+        //
+        List<MonkeyObject> args = new ArrayList<MonkeyObject>(1);
+        args.add(first);
+        return tail ? applyTailCall(fn, args) : applyFunction(fn, args);
+    }
+
+    public MonkeyObject apply2(MonkeyObject fn, MonkeyObject first, MonkeyObject second, 
+            boolean tail) {
+        MonkeyEnvironment scope = callScope(fn, 2);
+        if (scope != null) {
+            bindArgument(fn, scope, 0, first);
+            bindArgument(fn, scope, 1, second);
+            return callScoped(fn, scope, tail);
+        } else if (fn instanceof MonkeyObjectBuiltin) {
+            return callBuiltin((MonkeyObjectBuiltin) fn, 2, first, second);
+        }
+        //
+        List<MonkeyObject> args = new ArrayList<MonkeyObject>(2);
+        args.add(first);
+        args.add(second);
+        return tail ? applyTailCall(fn, args) : applyFunction(fn, args);
+    }
+
+    // Scope for calling fn with count positional arguments, or null when fn
+    // is not a user function or count is short of its parameters. Extra
+    // arguments are evaluated and dropped, as before.
+    MonkeyEnvironment callScope(MonkeyObject fn, int count) {
+        if (fn instanceof MonkeyObjectFunction) {
+            MonkeyObjectFunction f = (MonkeyObjectFunction) fn;
+            int params = f.getParameters().size();
+            if (count >= params) {
+                return MonkeyEnvironment.newInstanceEnclosed(f.getEnvironment(), params);
+            }
+        } else if (fn instanceof MonkeyObjectCompiledFunction) {
+            MonkeyObjectCompiledFunction f = (MonkeyObjectCompiledFunction) fn;
+            int params = f.getParameters().length;
+            if (count >= params) {
+                return MonkeyEnvironment.newInstanceEnclosed(f.getEnvironment(), params);
+            }
+        }
+        return null;
+    }
+
+    void bindArgument(MonkeyObject fn, MonkeyEnvironment scope, int index, MonkeyObject value) {
+        if (fn instanceof MonkeyObjectFunction) {
+            List<Identifier> params = ((MonkeyObjectFunction) fn).getParameters();
+            if (index < params.size()) {
+                scope.set(params.get(index).getValue(), value);
+            }
+        } else {
+            String[] params = ((MonkeyObjectCompiledFunction) fn).getParameters();
+            if (index < params.length) {
+                scope.set(params[index], value);
+            }
+        }
+    }
+
+    MonkeyEnvironment extendFunctionEnv(MonkeyObject fn, List<MonkeyObject> args) {
+        MonkeyEnvironment env;
+        if (fn instanceof MonkeyObjectFunction) {
+            MonkeyObjectFunction f = (MonkeyObjectFunction) fn;
+            List<Identifier> params = f.getParameters();
+            env = MonkeyEnvironment.newInstanceEnclosed(f.getEnvironment(), params.size());
+            for (int i=0; i<params.size(); i++) {
+                env.set(params.get(i).getValue(), args.get(i));
+            }
+        } else {
+            MonkeyObjectCompiledFunction f = (MonkeyObjectCompiledFunction) fn;
+            String[] params = f.getParameters();
+            env = MonkeyEnvironment.newInstanceEnclosed(f.getEnvironment(), params.length);
+            for (int i=0; i<params.length; i++) {
+                env.set(params[i], args.get(i));
+            }
+        }
+        //
+        return env;
+    }
+
+    MonkeyObject unwrapReturnValue(MonkeyObject obj) {
+        if (obj == returnSignal) {
+            return returnSignal.take();
+        }
+        //
+        return obj;
+    }
+    
+    boolean isTruthy(MonkeyObject obj) {
+        if (obj == NULL) {
+            return false;
+        } else if (obj == TRUE) {
+            return true;
+        } else if (obj == FALSE) {
+            return false;
+        } else {
+            return true;
+        }
+    }
+    
+    MonkeyObject newError(String message) {
+        return new MonkeyObjectError(message);
+    }
+    
+    MonkeyObject newError(String format, Object... args) {
+        return new MonkeyObjectError(format, args);
+    }
+    
+    boolean isError(MonkeyObject obj) {
+        return obj instanceof MonkeyObjectError;
+    }
+    
+    // Errors and a pending return both cut the enclosing evaluation short.
+    boolean isAbrupt(MonkeyObject obj) {
+        return obj == returnSignal || obj instanceof MonkeyObjectError;
+    }
+
+    public PrintStream getOutput() {
+        return output;
+    }
+
+    public boolean isStackMode() {
+        return stackMode;
+    }
+
+    public void setStackMode(boolean stackMode) {
+        this.stackMode = stackMode;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public void setMaxFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    public int getCallDepth() {
+        return callDepth;
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    // Fails the run once steps reach limit, also inside nested runs that
+    // builtins start and that never suspend.
+    public void setStepLimit(long limit) {
+        this.stepLimit = limit;
+    }
+
+    public long getStepLimit() {
+        return stepLimit;
+    }
+
+    MonkeyObject stepBudgetExceeded() {
+        return newError("step budget exceeded: %s steps", stepLimit);
+    }
+
+    public void setOutput(PrintStream output) {
+        this.output = output;
+    }
+    
+    // A fresh evaluator for work run on another thread. It writes to the
+    // same output, runs in the same mode, may use the frames this one has
+    // left, and starts from this one's call depth, step count and limit,
+    // so forked work is held to the caller's budget.
+    MonkeyEvaluator fork() {
+        MonkeyEvaluator ret = new MonkeyEvaluator(output);
+        ret.stackMode = stackMode;
+        ret.maxFrames = Math.max(1, maxFrames - sp);
+        ret.callDepth = callDepth;
+        ret.steps = steps;
+        ret.stepLimit = stepLimit;
+        return ret;
+    }
+    
+    // Counts steps taken on this evaluator's behalf by forked evaluators.
+    void addSteps(long n) {
+        steps += n;
+    }
+    
+    public static MonkeyEvaluator newInstance() {
+        return new MonkeyEvaluator();
+    }
+}
+
+class MonkeyTask implements Runnable {
+    private MonkeyScheduler scheduler;
+    private MonkeyEvaluator evaluator;
+    private long stepBudget;
+    private MonkeyObject result;
+    private boolean done;
+    private long submitted;
+    private long enqueued;
+    private long finished;
+    private long runNanos;
+    private long waitNanos;
+    private long maxWaitNanos;
+    private int slices;
+
+    public MonkeyTask(MonkeyScheduler scheduler, MonkeyEvaluator evaluator, long stepBudget) {
+        this.scheduler = scheduler;
+        this.evaluator = evaluator;
+        this.stepBudget = stepBudget;
+        if (stepBudget > 0) {
+            evaluator.setStepLimit(stepBudget);
+        }
+        this.submitted = System.nanoTime();
+        this.enqueued = submitted;
+    }
+
+    public void run() {
+        long began = System.nanoTime();
+        long wait = began - enqueued;
+        waitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        slices += 1;
+        //
+        boolean finishedRun;
+        try {
+            finishedRun = evaluator.resume(scheduler.getSliceSteps());
+        } catch (RuntimeException e) {
+            finishedRun = true;
+            evaluator.abort(evaluator.newError("script failed: %s", e));
+        }
+        if (!finishedRun && stepBudget > 0 && evaluator.getSteps() >= stepBudget) {
+            finishedRun = true;
+            evaluator.abort(evaluator.stepBudgetExceeded());
+        }
+        //
+        long ended = System.nanoTime();
+        runNanos += ended - began;
+        scheduler.recordSlice(wait);
+        if (finishedRun) {
+            complete(evaluator.getResult(), ended);
+        } else {
+            enqueued = ended;
+            scheduler.enqueue(this);
+        }
+    }
+
+    synchronized void complete(MonkeyObject result, long ended) {
+        this.result = result;
+        this.finished = ended;
+        this.done = true;
+        scheduler.recordCompletion(this);
+        notifyAll();
+    }
+
+    public synchronized MonkeyObject await() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+        return result;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized MonkeyObject getResult() {
+        return result;
+    }
+
+    public long getSteps() {
+        return evaluator.getSteps();
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    // time from submission to completion
+    public long getLatencyNanos() {
+        return finished - submitted;
+    }
+
+    public long getRunNanos() {
+        return runNanos;
+    }
+
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+}
+
+// Time-slices many scripts over a small thread pool: each task runs for
+// sliceSteps evaluator steps, then goes to the back of the queue.
+class MonkeyScheduler {
+    public static final int DEFAULT_SLICE_STEPS = 10000;
+
+    private ExecutorService pool;
+    private int sliceSteps;
+    private AtomicLong submitted;
+    private AtomicLong completed;
+    private AtomicLong slices;
+    private AtomicLong totalWaitNanos;
+    private AtomicLong maxWaitNanos;
+    private AtomicLong totalLatencyNanos;
+    private AtomicLong maxLatencyNanos;
+
+    public MonkeyScheduler(int threads, int sliceSteps) {
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.sliceSteps = sliceSteps;
+        this.submitted = new AtomicLong();
+        this.completed = new AtomicLong();
+        this.slices = new AtomicLong();
+        this.totalWaitNanos = new AtomicLong();
+        this.maxWaitNanos = new AtomicLong();
+        this.totalLatencyNanos = new AtomicLong();
+        this.maxLatencyNanos = new AtomicLong();
+    }
+
+    public MonkeyScheduler(int threads) {
+        this(threads, DEFAULT_SLICE_STEPS);
+    }
+
+    public MonkeyTask submit(MonkeyProgram program, MonkeyEnvironment env, PrintStream output,
+            long stepBudget) {
+        MonkeyEvaluator evaluator = new MonkeyEvaluator(output);
+        evaluator.start(program, env);
+        MonkeyTask task = new MonkeyTask(this, evaluator, stepBudget);
+        submitted.incrementAndGet();
+        enqueue(task);
+        return task;
+    }
+
+    public MonkeyTask submit(String source, PrintStream output, long stepBudget) {
+        MonkeyParser p = MonkeyParser.newInstance(Lexer.newInstance(source));
+        MonkeyProgram program = p.parseProgram();
+        if (!p.getErrors().isEmpty()) {
+            MonkeyEvaluator evaluator = new MonkeyEvaluator(output);
+            MonkeyTask task = new MonkeyTask(this, evaluator, stepBudget);
+            submitted.incrementAndGet();
+            task.complete(evaluator.newError("parser errors: %s",
+                    CompiUtil.stringJoin("; ", p.getErrors())), System.nanoTime());
+            return task;
+        }
+        return submit(program, MonkeyEnvironment.newInstance(), output, stepBudget);
+    }
+
+    void enqueue(MonkeyTask task) {
+        pool.execute(task);
+    }
+
+    void recordSlice(long waitNanos) {
+        slices.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        raise(maxWaitNanos, waitNanos);
+    }
+
+    void recordCompletion(MonkeyTask task) {
+        completed.incrementAndGet();
+        totalLatencyNanos.addAndGet(task.getLatencyNanos());
+        raise(maxLatencyNanos, task.getLatencyNanos());
+    }
+
+    static void raise(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public int getSliceSteps() {
+        return sliceSteps;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getSlices() {
+        return slices.get();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long getMeanWaitNanos() {
+        long n = slices.get();
+        return n == 0 ? 0 : totalWaitNanos.get() / n;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
     }
 
-    MonkeyObject evalStringInfixExpression(String operator, 
-            MonkeyObjectString left, MonkeyObjectString right) {
-        String leftVal = left.getValue();
-        String rightVal = right.getValue();
-        //
-        MonkeyObjectString o = new MonkeyObjectString();
-        if (!operator.equals("+")) {
-            return newError(String.format("unknown operator: %s %s %s", 
-                    left.getType(), operator, right.getType()));
-        }
-        //
-        o.setValue(leftVal + rightVal);
-        return o;
+    public long getMeanLatencyNanos() {
+        long n = completed.get();
+        return n == 0 ? 0 : totalLatencyNanos.get() / n;
     }
-    
-    MonkeyObject evalBangOperatorExpression(MonkeyObject right) {
-        if (right == TRUE) {
-            return FALSE;
-        } else if (right == FALSE) {
-            return TRUE;
-        } else if (right == NULL) {
-            return TRUE;
-        }
-        return FALSE;
+
+    public String metrics() {
+        return String.format("tasks=%s/%s slices=%s wait(mean/max)=%s/%s us latency(mean/max)=%s/%s us",
+                getCompleted(), getSubmitted(), getSlices(),
+                getMeanWaitNanos() / 1000, getMaxWaitNanos() / 1000,
+                getMeanLatencyNanos() / 1000, getMaxLatencyNanos() / 1000);
     }
 
-    MonkeyObject evalMinusPrefixOperatorExpression(MonkeyObject right) {
-        if (!right.getType().equals(MonkeyObject.INTEGER_OBJ)) {
-            return newError(String.format("unknown operator: -%s", right.getType()));
-        }
-        //
-        MonkeyObjectInteger o = new MonkeyObjectInteger();
-        BigDecimal val = ((MonkeyObjectInteger) right).getValue();
-        o.setValue(val.multiply(BigDecimal.valueOf(-1)));
-        return o;
+    public void shutdown() {
+        pool.shutdown();
     }
+}
 
-    MonkeyObject evalIfExpression(MonkeyIfExpression expression, MonkeyEnvironment env) {
-        MonkeyObject condition = eval(expression.getCondition(), env);
-        if (isError(condition)) {
-            return condition;
-        }
-        //
-        if (isTruthy(condition)) {
-            return eval(expression.getConsequence(), env);
-        } else if (!expression.getAlternative().isEmpty()) {
-            return eval(expression.getAlternative(), env);
-        } else {
-            return NULL;
-        }
+class MonkeyAotCompiler {
+    private String className;
+    private StringBuilder constants;
+    private StringBuilder functions;
+    private int counter;
+
+    public MonkeyAotCompiler(String className) {
+        this.className = className;
+        this.constants = new StringBuilder();
+        this.functions = new StringBuilder();
+        this.counter = 0;
     }
-    
-    MonkeyObject evalIdentifier(Identifier ident, MonkeyEnvironment env) {
-        MonkeyObject val = env.get(ident.getValue());
-        if (val != null) {
-            return val;
-        }
-        //
-        MonkeyObjectBuiltin builtin = MonkeyBuiltins.get(ident.getValue());
-        if (builtin != null) {
-            return builtin;
-        }
-        //
-        return newError(String.format("identifier not found: %s", ident.getValue()));
+
+    public String getClassName() {
+        return className;
     }
-    
-    List<MonkeyObject> evalExpressions(List<Expression> exp, MonkeyEnvironment env) {
-        List<MonkeyObject> result = new ArrayList<MonkeyObject>();
-        //
-        for (Expression e: exp) {
-            MonkeyObject evaluated = eval(e, env);
-            if (isError(evaluated)) {
-                result.add(evaluated);
-                return result;
-            }
-            result.add(evaluated);
-        }
+
+    public String compile(MonkeyProgram program) {
+        String body = compileBody("Program", program.getStatements());
         //
-        return result;
+        StringBuilder ret = new StringBuilder();
+        ret.append("import java.math.BigInteger;\n");
+        ret.append("import java.util.ArrayList;\n");
+        ret.append("import java.util.HashMap;\n");
+        ret.append("import java.util.List;\n");
+        ret.append("import java.util.Map;\n\n");
+        ret.append(String.format("public class %s {\n", className));
+        ret.append(constants);
+        ret.append(functions);
+        ret.append(body);
+        ret.append("\n    public static void main(String[] args) {\n");
+        ret.append("        Compilador.runCompiled(new Program());\n");
+        ret.append("    }\n");
+        ret.append("}\n");
+        return ret.toString();
     }
-    
-    MonkeyObject evalIndexExpression(MonkeyObject left, MonkeyObject index) {
-        if (left.getType().equals(MonkeyObject.ARRAY_OBJ) &&
-                index.getType().equals(MonkeyObject.INTEGER_OBJ)) {
-            return evalArrayIndexExpression((MonkeyObjectArray)left, 
-                    (MonkeyObjectInteger)index);
-        } else if (left.getType().equals(MonkeyObject.HASH_OBJ)) {
-            return evalHashIndexExpression((MonkeyObjectHash)left, index);
-        }
-        return newError(String.format("index operator not supported: %s", 
-                left.getType()));
+
+    String compileBody(String name, List<Statement> statements) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("\n    static final class %s implements MonkeyCompiledBody {\n", name));
+        out.append("        public MonkeyObject run(MonkeyEvaluator evaluator, MonkeyEnvironment env) {\n");
+        String ret = newTemp();
+        out.append(String.format("            MonkeyObject %s = MonkeyEvaluator.EMPTY;\n", ret));
+        compileStatements(statements, ret, out, "            ");
+        out.append(String.format("            return %s;\n", ret));
+        out.append("        }\n");
+        out.append("    }\n");
+        return out.toString();
     }
-    
-    MonkeyObject evalArrayIndexExpression(MonkeyObjectArray array, 
-            MonkeyObjectInteger index) {
-        int idx = index.getIntegerValue();
-        int max = array.getElements().size() - 1;
-        //
-        if (idx < 0 || idx > max) {
-            return NULL;
+
+    void compileStatements(List<Statement> statements, String ret, StringBuilder out,
+            String indent) {
+        for (Statement s: statements) {
+            if (s instanceof LetStatement) {
+                LetStatement let = (LetStatement) s;
+                String val = compileExpression(let.getValue(), out, indent);
+                emitErrorCheck(val, out, indent);
+                out.append(String.format("%senv.set(%s, %s);\n", indent,
+                        quote(let.getName().getValue()), val));
+                out.append(String.format("%s%s = null;\n", indent, ret));
+            } else if (s instanceof ReturnStatement) {
+                ReturnStatement r = (ReturnStatement) s;
+                String val = compileExpression(r.getReturnValue(), out, indent);
+                emitErrorCheck(val, out, indent);
+                // if (true) keeps any following code reachable for javac
+                out.append(String.format("%sif (true) {\n%s    return %s;\n%s}\n",
+                        indent, indent, val, indent));
+            } else if (s instanceof ExpressionStatement) {
+                ExpressionStatement e = (ExpressionStatement) s;
+                String val = compileExpression(e.getExpression(), out, indent);
+                out.append(String.format("%s%s = %s;\n", indent, ret, val));
+                emitErrorCheck(ret, out, indent);
+            } else {
+                throw new IllegalArgumentException("cannot compile statement: " + s);
+            }
         }
-        //
-        return array.getElements().get(idx);
     }
-    
-    MonkeyObject evalHashLiteral(MonkeyHashLiteral node, MonkeyEnvironment env) {
-        Map<MonkeyHashKey, MonkeyHashPair> pairs = new HashMap<MonkeyHashKey, MonkeyHashPair>();
-        //
-        for (Expression k: node.getPairs().keySet()) {
-            MonkeyObject key = eval(k, env);
-            if (isError(key)) {
-                return key;
+
+    String compileExpression(Expression node, StringBuilder out, String indent) {
+        if (node instanceof IntegerLiteral) {
+            IntegerLiteral s = (IntegerLiteral) node;
+            String name = newConstant();
+            if (s.getValue().bitLength() < 64) {
+                constants.append(String.format(
+                        "    static final MonkeyObjectInteger %s = MonkeyObjectInteger.valueOf(%sL);\n",
+                        name, s.getValue().toString()));
+            } else {
+                constants.append(String.format(
+                        "    static final MonkeyObjectInteger %s = MonkeyObjectInteger.valueOf(new BigInteger(\"%s\"));\n",
+                        name, s.getValue().toString()));
             }
-            //
-            if (!(key instanceof MonkeyHashable)) {
-                return newError(String.format("unusable as hash key: %s", 
-                        key.getType()));
+            return name;
+        } else if (node instanceof MonkeyStringLiteral) {
+            MonkeyStringLiteral s = (MonkeyStringLiteral) node;
+            String name = newConstant();
+            constants.append(String.format(
+                    "    static final MonkeyObjectString %s = MonkeyStringTable.intern(%s);\n",
+                    name, quote(s.getValue())));
+            return name;
+        } else if (node instanceof MonkeyBoolean) {
+            MonkeyBoolean s = (MonkeyBoolean) node;
+            return s.getValue() ? "MonkeyEvaluator.TRUE" : "MonkeyEvaluator.FALSE";
+        } else if (node instanceof Identifier) {
+            Identifier s = (Identifier) node;
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObject %s = evaluator.evalIdentifier(%s, env);\n",
+                    indent, t, quote(s.getValue())));
+            return t;
+        } else if (node instanceof MonkeyPrefixExpression) {
+            MonkeyPrefixExpression s = (MonkeyPrefixExpression) node;
+            String right = compileExpression(s.getRight(), out, indent);
+            emitErrorCheck(right, out, indent);
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObject %s = evaluator.evalPrefixExpression(%s, %s);\n",
+                    indent, t, quote(s.getOperator()), right));
+            return t;
+        } else if (node instanceof MonkeyInfixExpression) {
+            MonkeyInfixExpression s = (MonkeyInfixExpression) node;
+            String left = compileExpression(s.getLeft(), out, indent);
+            emitErrorCheck(left, out, indent);
+            String right = compileExpression(s.getRight(), out, indent);
+            emitErrorCheck(right, out, indent);
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObject %s = evaluator.evalInfixExpression(%s, %s, %s, %s);\n",
+                    indent, t, s.getOpcode(), quote(s.getOperator()), left, right));
+            return t;
+        } else if (node instanceof MonkeyIfExpression) {
+            MonkeyIfExpression s = (MonkeyIfExpression) node;
+            String condition = compileExpression(s.getCondition(), out, indent);
+            emitErrorCheck(condition, out, indent);
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObject %s = MonkeyEvaluator.EMPTY;\n", indent, t));
+            out.append(String.format("%sif (evaluator.isTruthy(%s)) {\n", indent, condition));
+            compileStatements(s.getConsequence().getStatements(), t, out, indent + "    ");
+            out.append(String.format("%s} else {\n", indent));
+            if (s.getAlternative().isEmpty()) {
+                out.append(String.format("%s    %s = MonkeyEvaluator.NULL;\n", indent, t));
+            } else {
+                compileStatements(s.getAlternative().getStatements(), t, out, indent + "    ");
             }
+            out.append(String.format("%s}\n", indent));
+            return t;
+        } else if (node instanceof MonkeyFunctionLiteral) {
+            MonkeyFunctionLiteral s = (MonkeyFunctionLiteral) node;
+            String fn = newFunction();
+            functions.append(compileBody(fn, s.getBody().getStatements()));
             //
-            Expression v = node.getPairs().get(k);
-            MonkeyObject val = eval(v, env);
-            if (isError(val)) {
-                return val;
+            List<String> params = new ArrayList<String>();
+            for (Identifier p: s.getParameters()) {
+                params.add(quote(p.getValue()));
             }
-            //
-            MonkeyHashKey hashed = ((MonkeyHashable)key).hashKey();
-            MonkeyHashPair p = new MonkeyHashPair();
-            p.setKey(key);
-            p.setValue(val);
-            try {
-                pairs.put(hashed, p);
-            } catch (Exception e) {
-                return NULL; 
+            String t = newTemp();
+            out.append(String.format(
+                    "%sMonkeyObject %s = new MonkeyObjectCompiledFunction(new String[] {%s}, new %s(), env, %s);\n",
+                    indent, t, CompiUtil.stringJoin(", ", params), fn, source(s.toString())));
+            return t;
+        } else if (node instanceof MonkeyCallExpression) {
+            MonkeyCallExpression s = (MonkeyCallExpression) node;
+            String function = compileExpression(s.getFunction(), out, indent);
+            emitErrorCheck(function, out, indent);
+            String t = newTemp();
+            if (s.getArguments().size() <= 2) {
+                StringBuilder args = new StringBuilder();
+                for (Expression e: s.getArguments()) {
+                    String arg = compileExpression(e, out, indent);
+                    emitErrorCheck(arg, out, indent);
+                    args.append(arg);
+                    args.append(", ");
+                }
+                out.append(String.format("%sMonkeyObject %s = evaluator.apply%s(%s, %s%s);\n",
+                        indent, t, s.getArguments().size(), function, args, s.isTail()));
+                return t;
             }
+            String args = compileExpressionList(s.getArguments(), out, indent);
+            out.append(String.format("%sMonkeyObject %s = evaluator.%s(%s, %s);\n",
+                    indent, t, s.isTail() ? "applyTailCall" : "applyFunction", function, args));
+            return t;
+        } else if (node instanceof MonkeyArrayLiteral) {
+            MonkeyArrayLiteral s = (MonkeyArrayLiteral) node;
+            String elements = compileExpressionList(s.getElements(), out, indent);
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObjectArray %s = new MonkeyObjectArray(%s);\n", indent, t, elements));
+            return t;
+        } else if (node instanceof MonkeyIndexExpression) {
+            MonkeyIndexExpression s = (MonkeyIndexExpression) node;
+            String left = compileExpression(s.getLeft(), out, indent);
+            emitErrorCheck(left, out, indent);
+            String index = compileExpression(s.getIndex(), out, indent);
+            emitErrorCheck(index, out, indent);
+            String site = newConstant();
+            constants.append(String.format(
+                    "    static final MonkeyIndexSite %s = new MonkeyIndexSite();\n", site));
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObject %s = evaluator.evalIndexExpression(%s, %s, %s);\n",
+                    indent, t, site, left, index));
+            return t;
+        } else if (node instanceof MonkeyHashLiteral) {
+            MonkeyHashLiteral s = (MonkeyHashLiteral) node;
+            String pairs = newTemp();
+            out.append(String.format("%sMonkeyHashBuilder %s = new MonkeyHashBuilder(%s);\n",
+                    indent, pairs, s.getPairs().size()));
+            for (Expression k: s.getPairs().keySet()) {
+                String key = compileExpression(k, out, indent);
+                String checked = newTemp();
+                out.append(String.format("%sMonkeyObject %s = evaluator.checkHashKey(%s);\n",
+                        indent, checked, key));
+                emitErrorCheck(checked, out, indent);
+                String val = compileExpression(s.getPairs().get(k), out, indent);
+                emitErrorCheck(val, out, indent);
+                out.append(String.format("%s%s.put(%s, %s);\n",
+                        indent, pairs, checked, val));
+            }
+            String t = newTemp();
+            out.append(String.format("%sMonkeyObjectHash %s = %s.build();\n", indent, t, pairs));
+            return t;
         }
         //
-        MonkeyObjectHash o = new MonkeyObjectHash();
-        o.setPairs(pairs);
-        return o;
-    }
-    
-    MonkeyObject evalHashIndexExpression(MonkeyObjectHash hashtable, MonkeyObject index) {
-        if (!(index instanceof MonkeyHashable)) {
-            return newError(String.format("unusable as hash key: %s", index.getType()));
-        }
-        //
-        MonkeyHashable hashIndex = (MonkeyHashable)index;
-        MonkeyHashPair pair = hashtable.getPairs().get(hashIndex.hashKey());
-        if (pair == null) {
-            return NULL;
-        }
-        //
-        return pair.getValue();
-    }
-    
-    MonkeyObject applyFunction(MonkeyObject fn, List<MonkeyObject> args) {
-        if (fn instanceof MonkeyObjectFunction) {
-            MonkeyObjectFunction f = (MonkeyObjectFunction)fn;
-            MonkeyEnvironment extendedEnv = extendFunctionEnv(f, args);
-            MonkeyObject evaluated = eval(f.getBody(), extendedEnv);
-            return unwrapReturnValue(evaluated);
-        } else if (fn instanceof MonkeyObjectBuiltin) {
-            MonkeyObjectBuiltin f = (MonkeyObjectBuiltin)fn;
-            MonkeyBuiltinCallable c = f.getFn();
-            return c.call(this, args);
+        throw new IllegalArgumentException("cannot compile expression: " + node);
+    }
+
+    String compileExpressionList(List<Expression> expressions, StringBuilder out,
+            String indent) {
+        String list = newTemp();
+        out.append(String.format("%sList<MonkeyObject> %s = new ArrayList<MonkeyObject>();\n",
+                indent, list));
+        for (Expression e: expressions) {
+            String val = compileExpression(e, out, indent);
+            emitErrorCheck(val, out, indent);
+            out.append(String.format("%s%s.add(%s);\n", indent, list, val));
         }
-        //
-        return newError(String.format("not a function: %s", fn.getType()));
+        return list;
     }
 
-    MonkeyEnvironment extendFunctionEnv(MonkeyObjectFunction fn, 
-            List<MonkeyObject> args) {
-        MonkeyEnvironment env = MonkeyEnvironment.newInstanceEnclosed(fn.getEnvironment());
-        for (int i=0; i<fn.getParameters().size(); i++) {
-            Identifier param = fn.getParameters().get(i);
-            env.set(param.getValue(), args.get(i));
-        }
-        //
-        return env;
+    void emitErrorCheck(String name, StringBuilder out, String indent) {
+        out.append(String.format("%sif (evaluator.isError(%s)) {\n%s    return %s;\n%s}\n",
+                indent, name, indent, name, indent));
     }
 
-    MonkeyObject unwrapReturnValue(MonkeyObject obj) {
-        if (obj instanceof MonkeyObjectReturnValue) {
-            MonkeyObjectReturnValue o = (MonkeyObjectReturnValue)obj;
-            return o.getValue();
-        }
-        //
-        return obj;
+    String newTemp() {
+        counter += 1;
+        return "t" + counter;
     }
-    
-    boolean isTruthy(MonkeyObject obj) {
-        if (obj == NULL) {
-            return false;
-        } else if (obj == TRUE) {
-            return true;
-        } else if (obj == FALSE) {
-            return false;
-        } else {
-            return true;
-        }
+
+    String newConstant() {
+        counter += 1;
+        return "C" + counter;
     }
-    
-    MonkeyObject newError(String message) {
-        MonkeyObjectError ret = new MonkeyObjectError();
-        ret.setMessage(message);
-        return ret;
+
+    String newFunction() {
+        counter += 1;
+        return "Fn" + counter;
     }
-    
-    boolean isError(MonkeyObject obj) {
-        if (obj != null) {
-            return obj.getType().equals(MonkeyObject.ERROR_OBJ);
+
+    String source(String s) {
+        String[] lines = s.split(Compilador.LINESEP, -1);
+        List<String> parts = new ArrayList<String>();
+        for (String line: lines) {
+            parts.add(quote(line));
         }
-        //
-        return false;
+        return CompiUtil.stringJoin(" + Compilador.LINESEP + ", parts);
     }
 
-    public PrintStream getOutput() {
-        return output;
+    static String quote(String s) {
+        StringBuilder ret = new StringBuilder();
+        ret.append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                ret.append('\\');
+                ret.append(c);
+            } else if (c < 0x20) {
+                ret.append(String.format("\\%03o", (int) c));
+            } else if (c > 0x7e) {
+                ret.append(String.format("\\u%04x", (int) c));
+            } else {
+                ret.append(c);
+            }
+        }
+        ret.append('"');
+        return ret.toString();
     }
 
-    public void setOutput(PrintStream output) {
-        this.output = output;
+    public static String classNameFor(String path) {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        StringBuilder ret = new StringBuilder("MonkeyAot_");
+        for (int i=0; i<name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) && c < 0x80) {
+                ret.append(c);
+            } else {
+                ret.append('_');
+            }
+        }
+        return ret.toString();
     }
-    
-    public static MonkeyEvaluator newInstance() {
-        return new MonkeyEvaluator();
-    }        
 }
 
 class CompiUtil {
@@ -2560,6 +7039,62 @@ class CompiUtil {
         //
         return ret.toString();
     }
+
+    public static boolean writeFile(File f, String s) {
+        try {
+            PrintStream out = new PrintStream(f, "UTF-8");
+            out.print(s);
+            out.close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public static boolean writeJar(File jar, String mainClass, List<File> sources) {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+        Set<String> added = new HashSet<String>();
+        //
+        try {
+            JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+            for (File source: sources) {
+                if (source.isDirectory()) {
+                    File[] files = source.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File f: files) {
+                        if (f.isFile() && f.getName().endsWith(".class") && added.add(f.getName())) {
+                            out.putNextEntry(new JarEntry(f.getName()));
+                            out.write(Files.readAllBytes(f.toPath()));
+                            out.closeEntry();
+                        }
+                    }
+                } else if (source.isFile()) {
+                    JarFile in = new JarFile(source);
+                    Enumeration<JarEntry> entries = in.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry e = entries.nextElement();
+                        String name = e.getName();
+                        if (name.endsWith(".class") && added.add(name)) {
+                            out.putNextEntry(new JarEntry(name));
+                            InputStream data = in.getInputStream(e);
+                            out.write(data.readAllBytes());
+                            data.close();
+                            out.closeEntry();
+                        }
+                    }
+                    in.close();
+                }
+            }
+            out.close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
 }
 
 public class Compilador {
@@ -2587,6 +7122,36 @@ public class Compilador {
         output.println(s);
     }
 
+    // Values and programs are rendered straight into the stream, so
+    // printing a large value builds no intermediate strings. This form
+    // prints what puts prints; outputInspect prints inspect's form.
+    public static void output(MonkeyObject o, PrintStream output) {
+        try {
+            o.inspectValueTo(output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        output.println();
+    }
+
+    public static void outputInspect(MonkeyObject o, PrintStream output) {
+        try {
+            o.inspectTo(output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        output.println();
+    }
+
+    public static void output(Node node, PrintStream output) {
+        try {
+            node.writeTo(output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        output.println();
+    }
+
     public static MonkeyEnvironment environmentFromMap(Map<String, Object> map) {
         MonkeyEnvironment e = new MonkeyEnvironment();
 
@@ -2606,7 +7171,7 @@ public class Compilador {
             } else if (v instanceof Boolean) {
                 value = new MonkeyObjectBoolean((Boolean) v);
             } else if (v instanceof Integer) {
-                value = new MonkeyObjectInteger((Integer) v);
+                value = MonkeyObjectInteger.valueOf((Integer) v);
             } else {
                 value = new MonkeyObjectString(v.toString());
             }
@@ -2660,7 +7225,7 @@ public class Compilador {
                 continue;
             }
             //
-            Compilador.output(program.toString());
+            Compilador.output(program, System.out);
         }
     }
     
@@ -2696,7 +7261,7 @@ public class Compilador {
             MonkeyEvaluator evaluator = MonkeyEvaluator.newInstance();
             MonkeyObject evaluated = evaluator.eval(program, env);
             if (evaluated != null) {
-                Compilador.output(evaluated.inspect());
+                Compilador.outputInspect(evaluated, System.out);
             }
         }
     }
@@ -2722,13 +7287,145 @@ public class Compilador {
         evaluator.setOutput(output);
         MonkeyObject evaluated = evaluator.eval(program, env);
         if (evaluated != null) {
-            Compilador.output(evaluated.inspect(), output);
+            Compilador.outputInspect(evaluated, output);
+        }
+    }
+
+    public static void runCompiled(MonkeyCompiledBody program) {
+        new MonkeyCompiledRun(program, System.out).start();
+    }
+
+    // Compiles the script at path into an executable jar in outDir and
+    // answers the jar, or null after reporting why it could not.
+    public static File aot(String path, String outDir) {
+        File f = new File(path);
+        if (!f.exists()) {
+            Compilador.output(String.format("AOT ERROR: file not found: %s", path));
+            return null;
+        }
+        Lexer l = Lexer.newInstance(CompiUtil.readFile(f));
+        MonkeyParser p = MonkeyParser.newInstance(l);
+        MonkeyProgram program = p.parseProgram();
+        //
+        List<String> errors = p.getErrors();
+        if (!errors.isEmpty()) {
+            Compilador.printParseErrors(errors);
+            return null;
+        }
+        //
+        MonkeyAotCompiler compiler = new MonkeyAotCompiler(MonkeyAotCompiler.classNameFor(path));
+        String name = compiler.getClassName();
+        File dir = new File(outDir);
+        dir.mkdirs();
+        File source = new File(dir, name + ".java");
+        if (!CompiUtil.writeFile(source, compiler.compile(program))) {
+            Compilador.output(String.format("AOT ERROR: could not write %s", source));
+            return null;
+        }
+        //
+        File runtime = runtimeClasses();
+        if (runtime == null) {
+            Compilador.output("AOT ERROR: runtime classes not found, run Compilador from compiled classes");
+            return null;
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            Compilador.output("AOT ERROR: no system Java compiler, a JDK is required");
+            return null;
+        }
+        int status = javac.run(null, null, null, "-nowarn", "-d", dir.getPath(),
+                "-cp", runtime.getPath(), source.getPath());
+        if (status != 0) {
+            Compilador.output(String.format("AOT ERROR: javac failed on %s", source));
+            return null;
+        }
+        //
+        File jar = new File(dir, name + ".jar");
+        List<File> contents = new ArrayList<File>();
+        contents.add(dir);
+        contents.add(runtime);
+        if (!CompiUtil.writeJar(jar, name, contents)) {
+            Compilador.output(String.format("AOT ERROR: could not write %s", jar));
+            return null;
+        }
+        Compilador.output(String.format("%s -> %s", path, jar));
+        return jar;
+    }
+    
+    // The directory or jar Compilador was loaded from, or null.
+    static File runtimeClasses() {
+        try {
+            return new File(Compilador.class.getProtectionDomain().getCodeSource()
+                    .getLocation().toURI());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    // Conformance check: runs every .mk script in dir through the
+    // interpreter and through its aot jar, each in a fresh JVM, and
+    // compares what they print. Answers whether all scripts agree.
+    public static boolean conform(String dir) {
+        File[] files = new File(dir).listFiles();
+        File runtime = runtimeClasses();
+        if (files == null || runtime == null) {
+            Compilador.output(String.format("CONFORM ERROR: cannot read %s", dir));
+            return false;
+        }
+        Arrays.sort(files);
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        File outDir;
+        try {
+            outDir = Files.createTempDirectory("monkey-conform").toFile();
+        } catch (IOException e) {
+            Compilador.output(String.format("CONFORM ERROR: %s", e.getMessage()));
+            return false;
+        }
+        int failed = 0;
+        int checked = 0;
+        for (File f: files) {
+            if (!f.getName().endsWith(".mk")) {
+                continue;
+            }
+            checked++;
+            String expected = run(java, "-cp", runtime.getPath(), "Compilador", f.getPath());
+            File jar = aot(f.getPath(), outDir.getPath());
+            String actual = jar == null ? null : run(java, "-jar", jar.getPath());
+            if (expected != null && expected.equals(actual)) {
+                Compilador.output(String.format("OK   %s", f.getName()));
+                continue;
+            }
+            failed++;
+            Compilador.output(String.format("FAIL %s", f.getName()));
+            Compilador.output(String.format("  interpreter: %s", expected));
+            Compilador.output(String.format("  aot:         %s", actual));
+        }
+        Compilador.output(String.format("%s of %s scripts agree", checked - failed, checked));
+        return failed == 0;
+    }
+    
+    // Everything a child process prints, stdout and stderr merged, or null
+    // when it could not be run.
+    static String run(String... command) {
+        try {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            InputStream in = p.getInputStream();
+            byte[] out = in.readAllBytes();
+            p.waitFor();
+            return new String(out, "UTF-8");
+        } catch (Exception e) {
+            return null;
         }
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
             Compilador.evaluator();
+        } else if (args[0].equals("aot") && args.length > 1) {
+            Compilador.aot(args[1], args.length > 2 ? args[2] : ".");
+        } else if (args[0].equals("conform")) {
+            boolean ok = Compilador.conform(args.length > 1 ? args[1] : "samples");
+            System.exit(ok ? 0 : 1);
         } else {
             String t = args[0];
             String s = t;
@@ -2739,7 +7436,7 @@ public class Compilador {
                 } catch (Exception e) {
                 }
             }
-            if (s.length() > 0) {
+            if (f.exists() || s.length() > 0) {
                 Compilador.evaluatorString(s, null, System.out);
             }
         }
@@ -0,0 +1 @@
+let a = 5 * (3 + 2) - 10 / 3; let b = -a + 100; puts(a); puts(b); puts(a < b, a > b, a == b, a != b); puts(!true, !!5, 1000000000000 * 1000000000000); puts(7 / -2); b * 2
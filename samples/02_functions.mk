@@ -0,0 +1 @@
+let add = fn(x, y) { x + y }; let twice = fn(f, x) { f(f(x)) }; let inc = fn(x) { add(x, 1) }; puts(twice(inc, 5)); let fib = fn(n) { if (n < 2) { return n; } fib(n - 1) + fib(n - 2) }; puts(fib(15)); let mk = fn(x) { fn(y) { x + y } }; let addfive = mk(5); puts(addfive(10)); add
@@ -0,0 +1 @@
+let a = [1, 2 * 3, "x", true, fn(x) { x }]; puts(a); puts(len(a), first(a), last(a), rest(a), push(a, 9)); puts(a[1], a[10], a[-1]); let map = fn(arr, f) { let iter = fn(arr, acc) { if (len(arr) == 0) { acc } else { iter(rest(arr), push(acc, f(first(arr)))) } }; iter(arr, []) }; puts(map([1,2,3,4], fn(x) { x * x })); rest([]); puts(rest([])); len("hello")
@@ -0,0 +1 @@
+let h = {"one": 1, "two": 2, 3: "three", true: "yes"}; puts(h["one"], h["two"], h[3], h[true], h["nope"]); let k = "tw"; puts(h[k + "o"]); puts({"a": 1}); h[fn(x){x}]
@@ -0,0 +1 @@
+let f = fn(x) { if (x > 3) { return x + true; } x }; puts(f(1)); f(5); puts("unreached")
@@ -0,0 +1 @@
+puts(len(1)); puts(len("a", "b")); puts(first(1)); puts(foobar); -true
@@ -0,0 +1 @@
+let s = "hello" + " " + "world"; puts(s); puts(len(s)); let rep = fn(n, acc) { if (n == 0) { acc } else { rep(n - 1, acc + "ab") } }; let r = rep(50, ""); puts(len(r)); puts(r); "a" - "b"
@@ -0,0 +1 @@
+let loop = fn(i, acc) { if (i == 0) { acc } else { loop(i - 1, acc + i) } }; loop(3000, 0)
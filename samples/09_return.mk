@@ -0,0 +1 @@
+if (10 > 1) { if (10 > 1) { return 10; } return 1; }
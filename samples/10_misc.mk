@@ -0,0 +1 @@
+let x = 10; let f = fn() { let x = 3; x }; puts(f(), x); puts(if (false) { 1 }); puts(fn(){}()); [1,2][0] + {"k": [5]}["k"][0]
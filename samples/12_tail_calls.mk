@@ -0,0 +1 @@
+let loop = fn(i, acc) { if (i == 0) { return acc; } loop(i - 1, acc + i) }; puts(loop(1000000, 0)); let even = fn(n) { if (n == 0) { true } else { odd(n - 1) } }; let odd = fn(n) { if (n == 0) { false } else { even(n - 1) } }; puts(even(100001)); let f = fn(x) { return len(x); }; f("abc")
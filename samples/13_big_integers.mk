@@ -0,0 +1 @@
+let m = 9223372036854775807; puts(m + 1, m * m, -m - 1, -(-m - 1), (-m - 1) / -1, m - -m, 99999999999999999999999 / 3, (m + 1) - 1, (m + 1) == 9223372036854775808, 5 / 0); let h = {9223372036854775808: "big", 3: "three"}; puts(h[m + 1], h[2 + 1]); [1,2,3][m + 1]
@@ -0,0 +1,9 @@
+let b = buffer(16);
+writeInt(b, 0, 305419896); writeLong(b, 8, -2); writeByte(b, 4, 300);
+puts(len(b), readInt(b, 0), readLong(b, 8), readByte(b, 4), b[0], b[16], b[-1], b);
+let s = slice(b, 8, 8);
+writeByte(s, 0, 7);
+puts(len(s), readByte(b, 8), readLong(s, 0));
+let m = mmap("/tmp/blob.bin");
+puts(len(m), m[0], readByte(m, 9), slice(m, 2, 3)[0]);
+puts(writeByte(m, 0, 1));
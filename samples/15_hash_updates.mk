@@ -0,0 +1,5 @@
+let h = {"a": 1, "b": 2};
+let g = put(put(h, "c", 3), "a", 10);
+puts(h, g, has(g, "c"), has(h, "c"), delete(g, "b"), h["a"], g["a"], g["zz"]);
+puts(keys(g), values(g), delete(h, "nope"), delete(delete(h, "a"), "b"));
+puts(put(h, true, "t")[true], put(h, 5, "five")[5]);
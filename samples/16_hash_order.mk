@@ -0,0 +1,20 @@
+let build = fn(h, i, n) { if (i == n) { h } else { build(put(h, i, i * i), i + 1, n) } };
+let h = build({}, 0, 40);
+puts(len(keys(h)));
+puts(h[39]); puts(h[5]); puts(h[40]);
+let small = build({}, 0, 5);
+puts(small);
+puts(delete(small, 2));
+puts(put(small, 2, "x"));
+puts(small);
+let big = build({}, 0, 300);
+puts(big[299]); puts(len(values(delete(big, 7)))); puts(has(delete(big, 7), 7)); puts(has(big, 7));
+let r = {"id": 1, "name": "a", "id": 2};
+puts(r);
+puts(delete(delete(delete(small, 0), 1), 3));
+let drop = fn(h, i, n, step) { if (n < i + 1) { h } else { drop(delete(h, i), i + step, n, step) } };
+puts(keys(h));
+let odd = drop(h, 0, 40, 2);
+puts(keys(odd));
+puts(keys(put(put(odd, 4, "back"), 1, "same")));
+puts(drop(big, 0, 290, 1));
@@ -0,0 +1,11 @@
+let mk = fn(i) { {"id": i, "name": "n", "score": i * 2} };
+let get = fn(r) { r["score"] };
+let sum = fn(i, acc) { if (i == 0) { acc } else { sum(i - 1, acc + get(mk(i))) } };
+puts(sum(100, 0));
+let a = {"x": 1, "y": 2};
+let b = {"y": 3, "x": 4};
+let f = fn(h) { h["x"] };
+puts(f(a)); puts(f(b)); puts(f(a)); puts(f({1: 5})); puts(f({"z": 1}));
+puts(put(a, "z", 9)); puts(put(a, 1, 9)); puts(delete(a, "x")); puts(a["nope"]); puts(a[1]);
+puts(keys(put(put(a, "y", 7), "w", 0)));
+let k = "y"; puts(a[k]);
@@ -0,0 +1,3 @@
+let build = fn(s, i) { if (i == 0) { s } else { build(s + "line of report text " + "\n", i - 1) } };
+let s = build("", 3000);
+puts(s); puts({s: 1}[s]);
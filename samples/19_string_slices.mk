@@ -0,0 +1,15 @@
+let build = fn(s, i) { if (i == 0) { s } else { build(s + "ab" + "c", i - 1) } };
+let s = build("", 3000);
+puts(len(s));
+let t = slice(s, 3, 6);
+puts(t); puts(len(t));
+let u = slice(t, 1, 2);
+puts(u);
+let h = {"bca": 1};
+puts(h[u + "a"]); puts(h[slice(s, 1, 3)]);
+puts(slice("hello", 0, 5)); puts(slice("hello", 5, 0));
+let big = build("", 200000);
+puts(len(big));
+puts(slice(big, 599990, 10));
+let r = {}; puts(put(r, big, 1)[big]);
+puts(len(build("x", 10)));
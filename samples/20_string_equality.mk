@@ -0,0 +1,6 @@
+let a = "abc"; let b = "ab" + "c";
+puts(a == b); puts(a != b); puts(a == "x"); puts("" == "");
+let h = {b: 1}; puts(h[a]); puts(h["abc"]);
+let k = fn(x) { "key" };
+puts(k(1) == k(2));
+puts(put({}, "ab" + "c", 5)["abc"]);
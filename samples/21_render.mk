@@ -0,0 +1,8 @@
+let f = fn(x, y) { let z = x + y; if (z > 2) { return [z, {"a": z}]; } else { z * 2 } };
+puts(f);
+puts(f(1, 2));
+puts(put(put({}, 1, "one"), "two", [true, false, "s"]));
+let big = fn(h, i) { if (i == 0) { h } else { big(put(h, i, i), i - 1) } };
+puts(len(keys(big({}, 100))));
+puts(keys(big({}, 40)));
+"done"
@@ -0,0 +1,15 @@
+puts(toArray(range(5))); puts(toArray(range(2, 10, 3))); puts(toArray(range(10, 0, -3))); puts(toArray(range(3, 3)));
+let sq = map(range(1, 6), fn(x) { x * x });
+puts(toArray(sq)); puts(len(sq)); puts(first(sq)); puts(sq[2]); puts(sq[9]);
+let ev = filter(range(20), fn(x) { x - (x / 2) * 2 == 0 });
+puts(toArray(ev)); puts(len(ev)); puts(ev[3]); puts(first(ev));
+let noisy = map(range(100), fn(x) { puts("visit"); x });
+puts(toArray(take(noisy, 2)));
+puts(toArray(take(filter(range(1000000000), fn(x) { x > 5 }), 3)));
+puts(reduce(range(1, 101), 0, fn(a, b) { a + b }));
+puts(reduce([1, 2, 3], 10, fn(a, b) { a * b }));
+puts(toArray(map(["a", "b"], fn(s) { s + "!" })));
+puts(sq); puts(len(take(range(10), 20))); puts(len(take(ev, 3)));
+puts(toArray(filter(take(range(1000), 3), fn(x) { x > 100 })));
+puts(toArray(filter(take(range(1000), 5), fn(x) { x > 2 })));
+puts(len(filter(take(range(1000), 4), fn(x) { x > 100 })));
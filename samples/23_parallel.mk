@@ -0,0 +1,24 @@
+let sq = fn(x) { x * x };
+let even = fn(x) { x - (x / 2) * 2 == 0 };
+let add = fn(a, b) { a + b };
+puts(pmap([1, 2, 3, 4], sq));
+puts(pfilter([1, 2, 3, 4, 5, 6], even));
+puts(preduce([1, 2, 3, 4], 10, add));
+puts(preduce([], 7, add));
+let big = toArray(range(100000));
+let m = pmap(big, sq);
+puts([len(m), m[0], m[99999]]);
+puts(m == m);
+puts(reduce(m, 0, add) == preduce(m, 0, add));
+puts(preduce(big, 0, add));
+let f = pfilter(big, even);
+puts([len(f), f[0], f[1], f[49999]]);
+puts(preduce(range(5000), 0, fn(a, b) { if (a > b) { a } else { b } }));
+let cat = fn(a, b) { a + b };
+puts(len(preduce(pmap(range(3000), fn(x) { "ab" }), "", cat)));
+let inner = pmap(range(3000), fn(x) { preduce(range(3000), 0, add) + x });
+puts([inner[0], inner[2999]]);
+puts(pmap(range(5000), fn(x) { if (x == 4000) { x + true } else { x } }));
+puts(pmap([1], 3));
+puts(pmap(3, sq));
+puts(pmap([1, 2], fn(x) { 1 / 0 }));
@@ -0,0 +1,19 @@
+puts(sort([3, 1, 2, -5, 0]));
+puts(sort(["pear", "apple", "fig"]));
+puts(sort([]));
+puts(sort([99999999999999999999, 3, -99999999999999999999]));
+puts(sort(map(range(5), fn(x) { 10 - x })));
+let people = [{"name": "bo", "age": 31}, {"name": "al", "age": 25}, {"name": "cy", "age": 31}, {"name": "di", "age": 20}];
+puts(sortBy(people, fn(p) { p["age"] }));
+puts(sortBy(people, fn(p) { p["name"] }));
+puts(sortBy([5, 3, 9, 1], fn(a, b) { b - a }));
+puts(sortBy(["bb", "a", "ccc"], len));
+let big = toArray(map(range(200000), fn(x) { (x * 7919) - ((x * 7919) / 200000) * 200000 }));
+let s = sort(big);
+puts([s[0], s[1], s[199999], len(s)]);
+let t = sortBy(big, fn(x) { 0 - x });
+puts([t[0], t[199999]]);
+let u = sortBy(toArray(range(3000)), fn(a, b) { a - b });
+puts([u[0], u[2999]]);
+let v = push(sort([3, 1, 2]), 0);
+puts(v);
@@ -0,0 +1,5 @@
+let f = fn(n) { if (n == 0) { 0 } else { 1 + f(n - 1) } };
+puts(f(100000));
+let g = fn(n, acc) { if (n == 0) { acc } else { g(n - 1, acc + 1) } };
+puts(g(1000000, 0));
+f(200000)